@@ -0,0 +1,301 @@
+package JavaEasembly;
+
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import compiler.CompileCache;
+import compiler.CompileSession;
+import compiler.OutputFormat;
+import compiler.Parser;
+import util.exceptions.CompileException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles lots of files in one JVM, spread over all cores.
+ * Arguments can be files, folders (all .asm files in it, recursively) or glob patterns like "src/**.asm".
+ * Every file gets one line of JSON on stdout, in the order the files were given.
+ *
+ * @author Dries007
+ */
+public class BatchCompiler
+{
+    public static final String EXTENSION = "asm";
+
+    private final List<File> includePaths;
+    private final String encoding;
+    private final OutputFormat format;
+
+    public BatchCompiler(List<File> includePaths, String encoding)
+    {
+        this(includePaths, encoding, OutputFormat.HEX);
+    }
+
+    /**
+     * @param includePaths searched for &lt;includes&gt;, if empty the folder of each source file is used, like Main does.
+     */
+    public BatchCompiler(List<File> includePaths, String encoding, OutputFormat format)
+    {
+        this.includePaths = includePaths;
+        this.encoding = encoding;
+        this.format = format;
+    }
+
+    /**
+     * @return 0 if every file compiled, 1 if any didn't, 2 if there was nothing to compile.
+     */
+    public int run(List<String> args, int threads, PrintStream out) throws IOException
+    {
+        List<File> files = findSources(args);
+        if (files.isEmpty())
+        {
+            System.err.println("No source files found.");
+            return 2;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Result[] results;
+        try
+        {
+            results = compile(files, pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return print(results, out);
+    }
+
+    /**
+     * @return 0 if every file compiled, 1 if any didn't.
+     */
+    public static int print(Result[] results, PrintStream out)
+    {
+        int status = 0;
+        for (Result result : results)
+        {
+            out.println(result.toJson());
+            if (!result.ok) status = 1;
+        }
+        return status;
+    }
+
+    public Result[] compile(List<File> files, ForkJoinPool pool)
+    {
+        Result[] results = new Result[files.size()];
+        if (results.length == 0) return results;
+        pool.invoke(new CompileTask(files, results, 0, results.length));
+        return results;
+    }
+
+    public Result compile(File file)
+    {
+        return compile(file, null);
+    }
+
+    /**
+     * @param cache kept between compiles of this file, may be null. Not thread safe, so don't share it between threads.
+     */
+    public Result compile(File file, CompileCache cache)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            List<File> paths = includePaths.isEmpty() ? Collections.singletonList(file.getAbsoluteFile().getParentFile()) : includePaths;
+            CompileSession session = CompileSession.forFile(file, paths, encoding, format);
+            Parser parser = new Parser(session, cache);
+            while (parser.hasWork()) parser.doWork();
+            return new Result(file, null, System.nanoTime() - start);
+        }
+        catch (Exception e)
+        {
+            return new Result(file, e, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Expands folders and globs. Duplicates are dropped, the order is kept.
+     */
+    public static List<File> findSources(List<String> args) throws IOException
+    {
+        LinkedHashSet<File> files = new LinkedHashSet<>();
+        for (String arg : args)
+        {
+            int wildcard = indexOfWildcard(arg);
+            if (wildcard != -1)
+            {
+                int split = Math.max(arg.lastIndexOf('/', wildcard), arg.lastIndexOf(File.separatorChar, wildcard));
+                Path root = Paths.get(split == -1 ? "." : arg.substring(0, split + 1));
+                PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + arg.substring(split + 1));
+                if (Files.isDirectory(root)) files.addAll(walk(root, p -> matcher.matches(root.relativize(p))));
+            }
+            else
+            {
+                File file = new File(arg);
+                if (file.isDirectory()) files.addAll(walk(file.toPath(), p -> p.getFileName().toString().toLowerCase().endsWith('.' + EXTENSION)));
+                else files.add(file.toPath().normalize().toFile());
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static int indexOfWildcard(String arg)
+    {
+        for (int i = 0; i < arg.length(); i++)
+        {
+            char c = arg.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') return i;
+        }
+        return -1;
+    }
+
+    private static List<File> walk(Path root, Predicate<Path> filter) throws IOException
+    {
+        try (Stream<Path> stream = Files.walk(root))
+        {
+            return stream.filter(Files::isRegularFile).filter(filter).map(Path::normalize).sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    private static String quote(String string)
+    {
+        StringBuilder stringBuilder = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    stringBuilder.append("\\\"");
+                    break;
+                case '\\':
+                    stringBuilder.append("\\\\");
+                    break;
+                case '\n':
+                    stringBuilder.append("\\n");
+                    break;
+                case '\r':
+                    stringBuilder.append("\\r");
+                    break;
+                case '\t':
+                    stringBuilder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) stringBuilder.append(String.format("\\u%04x", (int) c));
+                    else stringBuilder.append(c);
+            }
+        }
+        return stringBuilder.append('"').toString();
+    }
+
+    /**
+     * Splits the list in halves until there is one file left, idle workers steal the other halves.
+     */
+    private class CompileTask extends RecursiveAction
+    {
+        private final List<File> files;
+        private final Result[] results;
+        private final int from, to;
+
+        private CompileTask(List<File> files, Result[] results, int from, int to)
+        {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= 1)
+            {
+                if (from == to) return;
+                results[from] = compile(files.get(from));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CompileTask(files, results, from, middle), new CompileTask(files, results, middle, to));
+        }
+    }
+
+    public static class Result
+    {
+        public final File file;
+        public final boolean ok;
+        public final Exception exception;
+        public final long nanos;
+
+        public Result(File file, Exception exception, long nanos)
+        {
+            this.file = file;
+            this.ok = exception == null;
+            this.exception = exception;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the source line of the error (first line is 1), or -1 if unknown.
+         */
+        public int getLine()
+        {
+            if (exception instanceof CompileException && ((CompileException) exception).component != null)
+            {
+                return ((CompileException) exception).component.getSrcLine() + 1;
+            }
+            return -1;
+        }
+
+        public String toJson()
+        {
+            StringBuilder stringBuilder = new StringBuilder("{\"file\":").append(quote(file.getPath()));
+            stringBuilder.append(",\"status\":").append(ok ? "\"ok\"" : "\"error\"");
+            stringBuilder.append(",\"ms\":").append(nanos / 1000000);
+            if (!ok)
+            {
+                stringBuilder.append(",\"error\":").append(quote(exception.getClass().getSimpleName()));
+                if (getLine() != -1) stringBuilder.append(",\"line\":").append(getLine());
+                stringBuilder.append(",\"message\":").append(quote(String.valueOf(exception.getMessage())));
+            }
+            return stringBuilder.append('}').toString();
+        }
+    }
+}
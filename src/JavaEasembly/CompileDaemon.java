@@ -0,0 +1,337 @@
+package JavaEasembly;
+
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import compiler.CompileCache;
+import compiler.CompileSession;
+import compiler.OutputFormat;
+import compiler.Parser;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps a warmed up compiler around, so a build doesn't have to start a JVM for every file.
+ * Only listens on the loopback address, but every local user can connect to that. So on start the daemon writes a
+ * random token to a file only its owner can read (~/.j8051-daemon-&lt;port&gt;), and every request has to start with it.
+ * Without the token nothing is compiled or written and the daemon can't be stopped. Where the file system has no
+ * POSIX permissions (Windows) the file is only as private as the home folder it is in.
+ * The protocol is plain UTF-8 text, one thing per line:
+ * <pre>
+ * client: the token
+ * client: COMPILE
+ * client: /absolute/path/to/file.asm (any number of lines)
+ * client: (empty line)
+ * daemon: one line of JSON per file, see BatchCompiler.Result
+ * daemon: END 0|1
+ * </pre>
+ * Or the token and "STOP" to shut the daemon down. A wrong token, an unknown command or a COMPILE without files is
+ * answered with END 2. A client that doesn't send the whole request within READ_TIMEOUT is disconnected.
+ * Every source file keeps its own CompileCache, so unchanged lines aren't lexed again and unchanged .hex files aren't
+ * rewritten.
+ *
+ * @author Dries007
+ */
+public class CompileDaemon
+{
+    public static final int DEFAULT_PORT = 8051;
+    public static final String COMPILE = "COMPILE";
+    public static final String STOP = "STOP";
+    public static final String END = "END";
+    public static final String TOKEN_FILE = ".j8051-daemon-";
+    public static final int READ_TIMEOUT = 5000; // ms
+
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private final ForkJoinPool pool;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final ConcurrentHashMap<File, CompileCache> caches = new ConcurrentHashMap<>();
+    private final BatchCompiler compiler;
+
+    public CompileDaemon(int port, int threads, List<File> includePaths, String encoding, OutputFormat format) throws IOException
+    {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        tokenFile = getTokenFile(port);
+        try
+        {
+            token = writeToken(tokenFile);
+        }
+        catch (IOException e)
+        {
+            serverSocket.close();
+            throw e;
+        }
+        pool = new ForkJoinPool(threads);
+        compiler = new BatchCompiler(includePaths, encoding, format)
+        {
+            @Override
+            public Result compile(File file)
+            {
+                CompileCache cache = caches.computeIfAbsent(file.getAbsoluteFile(), f -> new CompileCache());
+                synchronized (cache)
+                {
+                    return compile(file, cache);
+                }
+            }
+        };
+    }
+
+    /**
+     * Loads and initializes the instruction table, keywords and expression compiler before the first request.
+     */
+    public void warmUp() throws Exception
+    {
+        CompileSession session = new CompileSession(null, Collections.<File>emptyList(), null, null);
+        Parser parser = new Parser("X EQU 1 + 2\nORG 0\nL: MOV A, #X\nDJNZ R0, L\nDB low(L), 'a'\nEND\n", session, null);
+        while (parser.hasWork()) parser.doWork();
+    }
+
+    /**
+     * Blocks until a STOP is received.
+     */
+    public void run()
+    {
+        System.out.println("Listening on " + serverSocket.getLocalSocketAddress());
+        try
+        {
+            while (!serverSocket.isClosed())
+            {
+                final Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            }
+        }
+        catch (SocketException e)
+        {
+            // closed by STOP
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            connections.shutdown();
+            pool.shutdown();
+            //noinspection ResultOfMethodCallIgnored
+            tokenFile.delete();
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try (Socket s = socket)
+        {
+            s.setSoTimeout(READ_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintStream out = new PrintStream(s.getOutputStream(), false, "UTF-8");
+            String sent = in.readLine();
+            if (sent == null || !MessageDigest.isEqual(token, sent.getBytes(StandardCharsets.UTF_8)))
+            {
+                out.println(END + " 2");
+                out.flush();
+                return;
+            }
+            String command = in.readLine();
+            if (STOP.equals(command))
+            {
+                out.println(END + " 0");
+                out.flush();
+                serverSocket.close();
+                return;
+            }
+            if (!COMPILE.equals(command))
+            {
+                out.println(END + " 2");
+                out.flush();
+                return;
+            }
+            List<File> files = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) files.add(new File(line));
+            if (files.isEmpty())
+            {
+                out.println(END + " 2");
+                out.flush();
+                return;
+            }
+            out.println(END + " " + BatchCompiler.print(compiler.compile(files, pool), out));
+            out.flush();
+        }
+        catch (SocketTimeoutException e)
+        {
+            // client went quiet, drop it
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the sources to a running daemon and prints what comes back.
+     * If no daemon is running, the files are compiled here instead.
+     *
+     * @return same as BatchCompiler.run
+     */
+    public static int client(int port, List<String> args, PrintStream out, BatchCompiler fallback, int threads) throws IOException
+    {
+        List<File> files = BatchCompiler.findSources(args);
+        if (files.isEmpty())
+        {
+            System.err.println("No source files found.");
+            return 2;
+        }
+        String token = readToken(getTokenFile(port));
+        Socket socket = null;
+        if (token != null)
+        {
+            try
+            {
+                socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            }
+            catch (IOException e)
+            {
+                // not running, or gone without removing its token
+            }
+        }
+        if (socket == null)
+        {
+            System.err.println("No compile daemon of yours on port " + port + ", compiling locally.");
+            return fallback.run(args, threads, out);
+        }
+        try (Socket s = socket)
+        {
+            PrintStream request = new PrintStream(s.getOutputStream(), false, "UTF-8");
+            request.println(token);
+            request.println(COMPILE);
+            for (File file : files) request.println(file.getAbsolutePath());
+            request.println();
+            request.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.startsWith(END + " ")) return Integer.parseInt(line.substring(END.length() + 1));
+                out.println(line);
+            }
+            throw new EOFException("Compile daemon closed the connection.");
+        }
+    }
+
+    /**
+     * @return true if a daemon was running.
+     */
+    public static boolean stop(int port) throws IOException
+    {
+        String token = readToken(getTokenFile(port));
+        if (token == null) return false;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            PrintStream request = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+            request.println(token);
+            request.println(STOP);
+            request.flush();
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            return (END + " 0").equals(reply);
+        }
+        catch (ConnectException e)
+        {
+            return false;
+        }
+    }
+
+    public static File getTokenFile(int port)
+    {
+        return new File(System.getProperty("user.home"), TOKEN_FILE + port);
+    }
+
+    /**
+     * Replaces the token file with a new random token, created readable and writable by the owner only.
+     *
+     * @return the token as the client sends it
+     */
+    private static byte[] writeToken(File file) throws IOException
+    {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String token = String.format("%064x", new BigInteger(1, random));
+        Files.deleteIfExists(file.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+        {
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        else
+        {
+            Files.createFile(file.toPath());
+            //noinspection ResultOfMethodCallIgnored
+            file.setReadable(false, false);
+            //noinspection ResultOfMethodCallIgnored
+            file.setReadable(true, true);
+        }
+        Files.write(file.toPath(), token.getBytes(StandardCharsets.UTF_8));
+        return token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return null if there is no token file or it isn't ours to read
+     */
+    private static String readToken(File file)
+    {
+        try
+        {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+}
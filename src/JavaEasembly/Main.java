@@ -31,12 +31,25 @@ package JavaEasembly;
  */
 
 
+import compiler.CompileSession;
+import compiler.OutputFormat;
 import compiler.Parser;
+import compiler.SymbolHeader;
 import gui.MainGui;
-import org.apache.commons.io.FileUtils;
+import upload.CompileAndFlash;
+import upload.Connection;
+import upload.GangProgrammer;
+import upload.PortProgress;
+import upload.SerialConnection;
+import upload.UploaderXC888;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static util.Constants.*;
 
@@ -48,11 +61,63 @@ public class Main
     public static File srcFile;
     public static File includeFile;
     private static boolean enablegui = true;
+    private static List<String> batchSources;
+    private static List<String> headers;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static int port = CompileDaemon.DEFAULT_PORT;
+    private static boolean runDaemon;
+    private static boolean useDaemon;
+    private static boolean stopDaemon;
+    private static boolean printStats;
+    private static OutputFormat outputFormat;
+    private static List<String> gangPorts;
+    private static String flashPort;
+    private static int baudRate = 9600;
+    private static int retries = 1;
 
     public static void main(String[] args) throws Exception
     {
+        loadProperties();
         parseArgs(args);
 
+        List<File> includePaths = includeFile == null ? Collections.<File>emptyList() : Collections.singletonList(includeFile);
+        String encoding = PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT);
+        if (stopDaemon)
+        {
+            System.exit(CompileDaemon.stop(port) ? 0 : 1);
+        }
+        if (runDaemon)
+        {
+            CompileDaemon daemon = new CompileDaemon(port, threads, includePaths, encoding, getOutputFormat());
+            daemon.warmUp();
+            daemon.run();
+            System.exit(0);
+        }
+        if (headers != null)
+        {
+            int status = 0;
+            for (String header : headers)
+            {
+                File file = new File(header);
+                if (SymbolHeader.precompile(file, new CompileSession(file, includePaths, encoding, null)))
+                {
+                    System.out.println(SymbolHeader.fileFor(file).getPath());
+                }
+                else
+                {
+                    System.out.println(header + " can't be precompiled, it has to contain only EQU, DATA and BIT symbols.");
+                    status = 1;
+                }
+            }
+            System.exit(status);
+        }
+        if (batchSources != null)
+        {
+            BatchCompiler batchCompiler = new BatchCompiler(includePaths, encoding, getOutputFormat());
+            if (useDaemon) System.exit(CompileDaemon.client(port, batchSources, System.out, batchCompiler, threads));
+            else System.exit(batchCompiler.run(batchSources, threads, System.out));
+        }
+
         if (srcFile == null)
         {
             if (PROPERTIES.containsKey(SRC_FILE)) Main.setSrcFile(new File(PROPERTIES.getProperty(SRC_FILE)));
@@ -79,12 +144,73 @@ public class Main
             }
             System.out.println(" -=- File used -=- ");
             System.out.println(Main.srcFile.getAbsolutePath());
-            Parser parser = new Parser(FileUtils.readFileToString(Main.srcFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)));
-            while (parser.hasWork()) parser.doWork();
+            CompileSession session = CompileSession.fromMain();
+            Parser parser = new Parser(session, null);
+            if (flashPort != null)
+            {
+                try (Connection connection = new SerialConnection(flashPort, baudRate))
+                {
+                    CompileAndFlash.run(parser, connection, new PortProgress(flashPort, consoleListener()));
+                }
+            }
+            else
+            {
+                while (parser.hasWork()) parser.doWork();
+            }
+            if (printStats)
+            {
+                System.out.println(" -=- Stats -=- ");
+                System.out.print(parser.stats);
+            }
             System.out.println(" -=- Done -=- ");
+            if (gangPorts != null)
+            {
+                System.out.println(" -=- Flashing " + gangPorts.size() + " boards -=- ");
+                GangProgrammer gangProgrammer = new GangProgrammer(new UploaderXC888(), port -> new SerialConnection(port, baudRate), gangPorts.size(), retries);
+                long start = System.nanoTime();
+                GangProgrammer.Result[] results = gangProgrammer.program(parser.image, gangPorts, consoleListener());
+                System.out.println(" -=- Summary -=- ");
+                System.out.print(GangProgrammer.summary(results, System.nanoTime() - start));
+                for (GangProgrammer.Result result : results)
+                {
+                    if (!result.ok) System.exit(1);
+                }
+            }
         }
     }
 
+    /**
+     * Prints upload progress in steps of 10%, or every 10 pages while the total isn't known yet.
+     */
+    private static GangProgrammer.Listener consoleListener()
+    {
+        return new GangProgrammer.Listener()
+        {
+            @Override
+            public void progress(String port, int done, int total, String note)
+            {
+                if (total == 0 ? done % 10 == 0 : done * 10 / total != (done - 1) * 10 / total) System.out.println(port + ": " + done + (total == 0 ? "" : "/" + total));
+            }
+
+            @Override
+            public void finished(GangProgrammer.Result result)
+            {
+                System.out.println(result);
+            }
+
+            @Override
+            public void reset(String port) throws IOException
+            {
+                synchronized (System.in)
+                {
+                    System.out.println("Reset the board on " + port + " and press Enter to try again.");
+                    int b;
+                    do b = System.in.read(); while (b != -1 && b != '\n');
+                }
+            }
+        };
+    }
+
     private static void parseArgs(String[] args)
     {
         for (int i = 0; i < args.length; i++)
@@ -94,6 +220,87 @@ public class Main
                 case "nogui":
                     enablegui = false;
                     break;
+                case "--stats":
+                    printStats = true;
+                    break;
+                case "threads":
+                    i++;
+                    if (i < args.length)
+                    {
+                        threads = Integer.parseInt(args[i]);
+                    }
+                    else throw new RuntimeException("Number expected as argument after 'threads'.");
+                    break;
+                case "port":
+                    i++;
+                    if (i < args.length)
+                    {
+                        port = Integer.parseInt(args[i]);
+                    }
+                    else throw new RuntimeException("Number expected as argument after 'port'.");
+                    break;
+                case "daemon":
+                    enablegui = false;
+                    runDaemon = true;
+                    break;
+                case "stopdaemon":
+                    enablegui = false;
+                    stopDaemon = true;
+                    break;
+                case "precompile":
+                    enablegui = false;
+                    headers = new ArrayList<>(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                    break;
+                case "client":
+                    enablegui = false;
+                    useDaemon = true;
+                    batchSources = new ArrayList<>(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                    break;
+                case "batch":
+                    enablegui = false;
+                    batchSources = new ArrayList<>(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                    break;
+                case "format":
+                    i++;
+                    if (i < args.length)
+                    {
+                        outputFormat = OutputFormat.forName(args[i]);
+                    }
+                    else throw new RuntimeException("hex, bin or s19 expected as argument after 'format'.");
+                    break;
+                case "baud":
+                    i++;
+                    if (i < args.length)
+                    {
+                        baudRate = Integer.parseInt(args[i]);
+                    }
+                    else throw new RuntimeException("Number expected as argument after 'baud'.");
+                    break;
+                case "retries":
+                    i++;
+                    if (i < args.length)
+                    {
+                        retries = Integer.parseInt(args[i]);
+                    }
+                    else throw new RuntimeException("Number expected as argument after 'retries'.");
+                    break;
+                case "flash":
+                    i++;
+                    if (i < args.length)
+                    {
+                        enablegui = false;
+                        flashPort = args[i];
+                    }
+                    else throw new RuntimeException("Port expected as argument after 'flash'.");
+                    break;
+                case "gang":
+                    enablegui = false;
+                    gangPorts = new ArrayList<>(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                    break;
                 case "file":
                     i++;
                     if (i < args.length)
@@ -105,6 +312,15 @@ public class Main
         }
     }
 
+    /**
+     * @return the format given with 'format', otherwise the one in the properties, otherwise HEX
+     */
+    public static OutputFormat getOutputFormat()
+    {
+        if (outputFormat != null) return outputFormat;
+        return OutputFormat.forName(PROPERTIES.getProperty(OUTPUT_FORMAT, OutputFormat.HEX.extension));
+    }
+
     public static void setSrcFile(File srcFile)
     {
         if (!srcFile.exists()) srcFile = null;
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.Component;
+import compiler.components.Symbol;
+import util.exceptions.CompileException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles source text without touching the disk, for tools and tests that assemble lots of small pieces of code.
+ * Includes come from a map given up front, nothing is written; the result has the image, the symbols, the listing and
+ * the error if there was one. Thread safe, every call gets its own Parser.
+ *
+ * @author Dries007
+ */
+public class Assembler {
+
+    private final CompileSession session;
+
+    public Assembler() {
+        this(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param includes file name -&gt; contents, for both "name" and &lt;name&gt;
+     */
+    public Assembler(Map<String, String> includes) {
+        this.session = CompileSession.inMemory(includes);
+    }
+
+    public Result assemble(String src) {
+        Parser parser = new Parser(src, session, null);
+        try {
+            while (parser.hasWork()) {
+                parser.doWork();
+            }
+            return new Result(parser, null);
+        } catch (Exception e) {
+            return new Result(parser, e);
+        }
+    }
+
+    /**
+     * Everything a compile made. After an error the image, symbols and listing are as far as the compile got.
+     */
+    public static class Result {
+
+        public final boolean ok;
+        /**
+         * null if ok
+         */
+        public final Exception error;
+        public final MemoryImage image;
+        /**
+         * Without "$", the current location. Keys are in lower case, symbols aren't case sensitive.
+         */
+        public final Map<String, Symbol> symbols;
+        /**
+         * Every line after preprocessing, with its address and bytes once resolved
+         */
+        public final List<Component> listing;
+        public final CompileStats stats;
+
+        private Result(Parser parser, Exception error) {
+            this.ok = error == null;
+            this.error = error;
+            this.image = parser.image;
+            HashMap<String, Symbol> symbols = new HashMap<>(parser.symbols);
+            symbols.values().remove(parser.currentLocation);
+            this.symbols = Collections.unmodifiableMap(symbols);
+            this.listing = Collections.unmodifiableList(parser.components);
+            this.stats = parser.stats;
+        }
+
+        /**
+         * @return the flash contents from address 0, see {@link MemoryImage#toBinary()}
+         */
+        public byte[] getBytes() {
+            return image.toBinary();
+        }
+
+        /**
+         * @param name in any case
+         * @return the value of a symbol, null if it doesn't exist or isn't defined
+         */
+        public Integer getSymbol(String name) {
+            Symbol symbol = symbols.get(name.toLowerCase());
+            return symbol == null || !symbol.isDefined() ? null : symbol.intValue;
+        }
+
+        /**
+         * @return the source line of the error (first line is 1), or -1 if unknown.
+         */
+        public int getLine() {
+            if (error instanceof CompileException && ((CompileException) error).component != null) {
+                return ((CompileException) error).component.getSrcLine() + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the error message, null if ok
+         */
+        public String getMessage() {
+            return error == null ? null : error.getMessage();
+        }
+    }
+}
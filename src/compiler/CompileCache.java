@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import util.CompiledExpression;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps work between compiles of (mostly) the same source, like the GUI does after every editing pause.
+ * Lines and expressions that didn't change since the last compile aren't lexed or parsed again, and an identical .hex
+ * file isn't rewritten.
+ * Lines are matched by position, not looked up by their text: the lines before the first and after the last changed
+ * one are taken from the last compile, after comparing them with the line at the same place. An edit in one spot
+ * (changing, adding or removing lines) so only lexes the lines that were edited, without hashing every line.
+ * When only the values of EQU/DATA/BIT lines changed, the last compile is patched instead, see {@link LastCompile}.
+ * Entries that weren't used by the last compile are dropped, so this only holds on to one compile's worth of data.
+ * Not thread safe, use one per compile thread.
+ *
+ * @author Dries007
+ */
+public class CompileCache {
+
+    private String[] lineSrcs = new String[0];
+    private Lexer.Line[] lines = new Lexer.Line[0];
+    private HashMap<String, CompiledExpression> expressions = new HashMap<>();
+    private HashMap<String, CompiledExpression> oldExpressions = new HashMap<>();
+    private HashMap<String, CompiledExpression> bitExpressions = new HashMap<>();
+    private HashMap<String, CompiledExpression> oldBitExpressions = new HashMap<>();
+    private LastCompile last;
+    private LastCompile next;
+    private HexOutput hexOutput;
+    private byte[] hex;
+
+    /**
+     * Called by the Parser. Everything that isn't used again during this compile is forgotten after the next call.
+     */
+    public void startCompile() {
+        next = null;
+        oldExpressions = expressions;
+        expressions = new HashMap<>();
+        oldBitExpressions = bitExpressions;
+        bitExpressions = new HashMap<>();
+    }
+
+    /**
+     * Fills in the lines of the last compile that are still the same: from the start up to the first difference and
+     * from the end back to the last one. The others are left null.
+     */
+    void getLines(String[] srcs, Lexer.Line[] out) {
+        int count = Math.min(srcs.length, lineSrcs.length);
+        int start = 0;
+        while (start < count && srcs[start].equals(lineSrcs[start])) {
+            out[start] = lines[start];
+            start++;
+        }
+        int end = 0;
+        while (end < count - start && srcs[srcs.length - 1 - end].equals(lineSrcs[lineSrcs.length - 1 - end])) {
+            out[srcs.length - 1 - end] = lines[lines.length - 1 - end];
+            end++;
+        }
+    }
+
+    /**
+     * @param lines all lines of this compile, kept for the next one
+     */
+    void putLines(String[] srcs, Lexer.Line[] lines) {
+        this.lineSrcs = srcs;
+        this.lines = lines;
+    }
+
+    /**
+     * Called by the Lexer, what this compile becomes if it succeeds.
+     */
+    void lexed(LastCompile compile) {
+        next = compile;
+    }
+
+    /**
+     * Called by the Parser instead of the lexer.
+     *
+     * @return the patched last compile, or null if this one has to be done in full
+     */
+    LastCompile update(Parser parser) {
+        if (last == null) {
+            return null;
+        }
+        LastCompile patched = last.update(parser);
+        if (patched != null) {
+            next = patched;
+            putLines(patched.srcs, patched.lines);
+        }
+        return patched;
+    }
+
+    /**
+     * Called by the Parser when the compile succeeded. A failed compile leaves the last successful one in place.
+     */
+    void compiled(Parser parser) {
+        last = next != null && next.finish(parser) ? next : null;
+        next = null;
+    }
+
+    /**
+     * @return a previously parsed expression, not yet bound to this compile's symbols.
+     */
+    public CompiledExpression getExpression(boolean bits, String expression) {
+        return bits ? get(bitExpressions, oldBitExpressions, expression) : get(expressions, oldExpressions, expression);
+    }
+
+    public void putExpression(boolean bits, String expression, CompiledExpression compiled) {
+        (bits ? bitExpressions : expressions).put(expression, compiled);
+    }
+
+    /**
+     * @return true if this exact file was written to this output by the last compile.
+     */
+    boolean isOutputUpToDate(HexOutput output, byte[] hex) {
+        if (!output.equals(hexOutput) || !Arrays.equals(hex, this.hex)) {
+            return false;
+        }
+        return !(output instanceof HexFile) || ((HexFile) output).file.exists();
+    }
+
+    void setOutput(HexOutput output, byte[] hex) {
+        hexOutput = output;
+        this.hex = hex;
+    }
+
+    private static <T> T get(HashMap<String, T> current, HashMap<String, T> old, String key) {
+        T value = current.get(key);
+        if (value == null) {
+            value = old.remove(key);
+            if (value != null) {
+                current.put(key, value);
+            }
+        }
+        return value;
+    }
+}
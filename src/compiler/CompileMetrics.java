@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Totals of every compile in this JVM, registered as the MBean "JavaEasembly:type=CompileMetrics" so they can be
+ * watched with jconsole or any other JMX client.
+ *
+ * @author Dries007
+ */
+public class CompileMetrics implements CompileMetricsMXBean {
+
+    public static final String OBJECT_NAME = "JavaEasembly:type=CompileMetrics";
+    public static final CompileMetrics METRICS = new CompileMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(METRICS, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long compiles, failedCompiles;
+    private final long[] stageNanos = new long[Parser.Stage.values().length];
+    private long lexedLines, components, resolverSteps, evaluations, undefined, bytes;
+    private CompileStats last;
+
+    private CompileMetrics() {
+    }
+
+    /**
+     * Called by the Parser when a compile is done or has failed.
+     */
+    public synchronized void add(CompileStats stats, boolean failed) {
+        compiles++;
+        if (failed) {
+            failedCompiles++;
+        }
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] += stats.stageNanos[i];
+        }
+        lexedLines += stats.lexedLines;
+        components += stats.components;
+        resolverSteps += stats.resolverSteps;
+        evaluations += stats.evaluations;
+        undefined += stats.undefined;
+        bytes += stats.bytes;
+        last = stats;
+    }
+
+    @Override
+    public synchronized long getCompiles() {
+        return compiles;
+    }
+
+    @Override
+    public synchronized long getFailedCompiles() {
+        return failedCompiles;
+    }
+
+    @Override
+    public synchronized double getTotalMillis() {
+        long total = 0;
+        for (long nanos : stageNanos) {
+            total += nanos;
+        }
+        return total / 1e6;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getStageMillis() {
+        LinkedHashMap<String, Double> map = new LinkedHashMap<>();
+        for (Parser.Stage stage = Parser.Stage.INIT.nextStep; stage != Parser.Stage.DONE; stage = stage.nextStep) {
+            map.put(stage.name(), stageNanos[stage.ordinal()] / 1e6);
+        }
+        return map;
+    }
+
+    @Override
+    public synchronized long getLexedLines() {
+        return lexedLines;
+    }
+
+    @Override
+    public synchronized long getComponents() {
+        return components;
+    }
+
+    @Override
+    public synchronized long getResolverSteps() {
+        return resolverSteps;
+    }
+
+    @Override
+    public synchronized long getEvaluations() {
+        return evaluations;
+    }
+
+    @Override
+    public synchronized long getUndefinedEvaluations() {
+        return undefined;
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String getLastCompile() {
+        return last == null ? "" : last.toString();
+    }
+
+    @Override
+    public synchronized void reset() {
+        compiles = failedCompiles = 0;
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = 0;
+        }
+        lexedLines = components = resolverSteps = evaluations = undefined = bytes = 0;
+        last = null;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import JavaEasembly.Main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static util.Constants.*;
+
+/**
+ * Everything a compile needs from the outside world: the source file, where to look for includes, the encoding and
+ * where the output goes. Immutable, so one Parser per session can run next to any number of others.
+ *
+ * @author Dries007
+ */
+public class CompileSession {
+
+    /**
+     * The source file, used to find "relative" includes. May be null.
+     */
+    public final File srcFile;
+    /**
+     * Searched in order for &lt;system&gt; includes.
+     */
+    public final List<File> includePaths;
+    /**
+     * null means the platform default.
+     */
+    public final String encoding;
+    /**
+     * May be null, then no output is written.
+     */
+    public final HexOutput output;
+    /**
+     * Keep the text of includes and the preprocessed source around, for display. Off by default, the compile itself
+     * doesn't need them.
+     */
+    public final boolean keepText;
+    /**
+     * Shared with other sessions, by default {@link IncludeCache#SHARED}.
+     */
+    public final IncludeCache includeCache;
+    /**
+     * If not null, includes are looked up in here by the name between the quotes or angle brackets and never on disk.
+     */
+    public final Map<String, String> memoryIncludes;
+
+    public CompileSession(File srcFile, List<File> includePaths, String encoding, HexOutput output) {
+        this(srcFile, includePaths, encoding, output, false);
+    }
+
+    public CompileSession(File srcFile, List<File> includePaths, String encoding, HexOutput output, boolean keepText) {
+        this(srcFile, includePaths, encoding, output, keepText, IncludeCache.SHARED);
+    }
+
+    public CompileSession(File srcFile, List<File> includePaths, String encoding, HexOutput output, boolean keepText, IncludeCache includeCache) {
+        this(srcFile, includePaths, encoding, output, keepText, includeCache, null);
+    }
+
+    private CompileSession(File srcFile, List<File> includePaths, String encoding, HexOutput output, boolean keepText, IncludeCache includeCache, Map<String, String> memoryIncludes) {
+        this.srcFile = srcFile;
+        this.includePaths = Collections.unmodifiableList(new ArrayList<>(includePaths));
+        this.encoding = encoding;
+        this.output = output;
+        this.keepText = keepText;
+        this.includeCache = includeCache;
+        this.memoryIncludes = memoryIncludes;
+    }
+
+    /**
+     * A session that doesn't touch the disk: the source has to be given to the Parser, includes come from the map and
+     * no output is written.
+     *
+     * @param includes file name -&gt; contents, for both "name" and &lt;name&gt;
+     */
+    public static CompileSession inMemory(Map<String, String> includes) {
+        return new CompileSession(null, Collections.<File>emptyList(), null, null, false, IncludeCache.SHARED, Collections.unmodifiableMap(new HashMap<>(includes)));
+    }
+
+    /**
+     * A session for one source file with the .hex file next to it.
+     */
+    public static CompileSession forFile(File srcFile, List<File> includePaths, String encoding) {
+        return forFile(srcFile, includePaths, encoding, OutputFormat.HEX);
+    }
+
+    /**
+     * A session for one source file with the output file next to it.
+     */
+    public static CompileSession forFile(File srcFile, List<File> includePaths, String encoding, OutputFormat format) {
+        return new CompileSession(srcFile, includePaths, encoding, new HexFile(format.forSource(srcFile), format));
+    }
+
+    /**
+     * The session the GUI and the single file command line use: the settings in Main and the properties file.
+     */
+    public static CompileSession fromMain() {
+        String encoding = PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT);
+        List<File> includePaths = Main.includeFile == null ? Collections.<File>emptyList() : Collections.singletonList(Main.includeFile);
+        if (Main.srcFile == null) {
+            return new CompileSession(null, includePaths, encoding, null, true);
+        }
+        OutputFormat format = Main.getOutputFormat();
+        return new CompileSession(Main.srcFile, includePaths, encoding, new HexFile(format.forSource(Main.srcFile), format), true);
+    }
+
+    /**
+     * @param name   the name between the quotes or angle brackets
+     * @param system true for #include &lt;name&gt;, false for #include "name"
+     */
+    public File resolveInclude(String name, boolean system) {
+        File file = new File(name);
+        if (!system) {
+            if (!file.isAbsolute() && srcFile != null && !file.exists()) {
+                File relative = new File(srcFile.getAbsoluteFile().getParentFile(), name);
+                if (relative.exists()) {
+                    return relative;
+                }
+            }
+            return file;
+        }
+        for (File path : includePaths) {
+            File include = new File(path, name);
+            if (include.exists()) {
+                return include;
+            }
+        }
+        return includePaths.isEmpty() ? file : new File(includePaths.get(0), name);
+    }
+}
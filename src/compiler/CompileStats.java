@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import util.CompiledExpression;
+
+/**
+ * Where the time of one compile went. Filled in by the Parser, not thread safe (neither is a Parser).
+ *
+ * @author Dries007
+ */
+public class CompileStats {
+
+    /**
+     * Indexed by Stage.ordinal()
+     */
+    public final long[] stageNanos = new long[Parser.Stage.values().length];
+    /**
+     * Source lines the lexer scanned, the others were taken from the CompileCache.
+     */
+    public int lexedLines;
+    /**
+     * Components after lexing.
+     */
+    public int components;
+    /**
+     * Symbols taken off the SymbolResolver's worklist, over both passes.
+     */
+    public int resolverSteps;
+    /**
+     * Expressions evaluated.
+     */
+    public int evaluations;
+    /**
+     * Evaluations that hit an undefined symbol (what used to be a SymbolUndefinedException).
+     */
+    public int undefined;
+    /**
+     * Bytes in the .hex output.
+     */
+    public int bytes;
+
+    /**
+     * Called by CompiledExpression for every evaluation against a SymbolTable.
+     */
+    public void evaluated(int status) {
+        evaluations++;
+        if (status == CompiledExpression.UNDEFINED) {
+            undefined++;
+        }
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : stageNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Parser.Stage stage = Parser.Stage.INIT.nextStep; stage != null; stage = stage.nextStep) {
+            if (stage != Parser.Stage.DONE) {
+                stringBuilder.append(String.format("%-22s %9.3f ms%n", stage, stageNanos[stage.ordinal()] / 1e6));
+            }
+        }
+        stringBuilder.append(String.format("%-22s %9.3f ms%n", "TOTAL", getTotalNanos() / 1e6));
+        stringBuilder.append(String.format("%-22s %9d%n", "Lexed lines", lexedLines));
+        stringBuilder.append(String.format("%-22s %9d%n", "Components", components));
+        stringBuilder.append(String.format("%-22s %9d%n", "Resolver steps", resolverSteps));
+        stringBuilder.append(String.format("%-22s %9d%n", "Evaluations", evaluations));
+        stringBuilder.append(String.format("%-22s %9d%n", "Undefined evaluations", undefined));
+        stringBuilder.append(String.format("%-22s %9d%n", "Bytes", bytes));
+        return stringBuilder.toString();
+    }
+}
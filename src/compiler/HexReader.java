@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import util.exceptions.HexFormatException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes Intel HEX straight from the bytes of the file: digits go through a lookup table and every record's
+ * checksum is checked as it's read. All record types are understood, extended segment (02) and extended linear
+ * (04) addresses are applied to the data that follows, start addresses (03, 05) are passed on.
+ * Lines that don't start with ':' are skipped, reading stops at the end of file record.
+ * Reuses one buffer for the data of every record, so reading a file doesn't allocate anything per record.
+ *
+ * @author Dries007
+ */
+public class HexReader {
+
+    public static final int TYPE_EXTENDED_SEGMENT = 0x02;
+    public static final int TYPE_START_SEGMENT = 0x03;
+    public static final int TYPE_EXTENDED_LINEAR = 0x04;
+    public static final int TYPE_START_LINEAR = 0x05;
+    static final byte[] NIBBLES = new byte[128];
+
+    static {
+        Arrays.fill(NIBBLES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['A' + i] = (byte) (10 + i);
+            NIBBLES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final byte[] record = new byte[5 + 255];
+    private int line;
+
+    /**
+     * Gets the contents of a file from {@link #read(ByteBuffer, Handler)}.
+     */
+    public interface Handler {
+
+        /**
+         * @param address the full address, extended addresses included
+         * @param data    only valid during the call
+         */
+        void data(int address, byte[] data, int offset, int length) throws HexFormatException;
+
+        /**
+         * A start address record, CS:IP for type 03, EIP for type 05. Most files don't have one.
+         */
+        void start(int address);
+    }
+
+    /**
+     * Reads everything that's left in the buffer, or up to the end of file record.
+     *
+     * @return true if there was an end of file record
+     */
+    public boolean read(ByteBuffer in, Handler handler) throws HexFormatException {
+        line = 1;
+        int base = 0;
+        while (in.hasRemaining()) {
+            byte c = in.get();
+            if (c == '\n') {
+                line++;
+                continue;
+            }
+            if (c != ':') {
+                skipLine(in);
+                continue;
+            }
+            int length = readByte(in);
+            record[0] = (byte) length;
+            int sum = length;
+            for (int i = 1; i < length + 5; i++) {
+                int b = readByte(in);
+                record[i] = (byte) b;
+                sum += b;
+            }
+            if ((sum & 0xFF) != 0) {
+                throw new HexFormatException(line, "Checksum error.");
+            }
+            int address = (record[1] & 0xFF) << 8 | (record[2] & 0xFF);
+            int type = record[3] & 0xFF;
+            switch (type) {
+                case HexWriter.TYPE_DATA:
+                    handler.data(base + address, record, 4, length);
+                    break;
+                case HexWriter.TYPE_EOF:
+                    return true;
+                case TYPE_EXTENDED_SEGMENT:
+                    base = readWord(length) << 4;
+                    break;
+                case TYPE_EXTENDED_LINEAR:
+                    base = readWord(length) << 16;
+                    break;
+                case TYPE_START_SEGMENT:
+                case TYPE_START_LINEAR:
+                    if (length != 4) {
+                        throw new HexFormatException(line, "Start address record must have 4 bytes.");
+                    }
+                    handler.start((record[4] & 0xFF) << 24 | (record[5] & 0xFF) << 16 | (record[6] & 0xFF) << 8 | (record[7] & 0xFF));
+                    break;
+                default:
+                    throw new HexFormatException(line, String.format("Unknown record type 0x%02X.", type));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a file into a 64K image. Data outside of the 64K is an error.
+     */
+    public static MemoryImage readImage(ByteBuffer in) throws HexFormatException {
+        final MemoryImage image = new MemoryImage();
+        final HexReader reader = new HexReader();
+        reader.read(in, new Handler() {
+            @Override
+            public void data(int address, byte[] data, int offset, int length) throws HexFormatException {
+                if (address < 0 || address + length > MemoryImage.SIZE) {
+                    throw new HexFormatException(reader.line, String.format("Address 0x%X is outside of the 64K code space.", address));
+                }
+                for (int i = 0; i < length; i++) {
+                    image.set(address + i, data[offset + i]);
+                }
+            }
+
+            @Override
+            public void start(int address) {
+            }
+        });
+        return image;
+    }
+
+    private int readWord(int length) throws HexFormatException {
+        if (length != 2) {
+            throw new HexFormatException(line, "Extended address record must have 2 bytes.");
+        }
+        return (record[4] & 0xFF) << 8 | (record[5] & 0xFF);
+    }
+
+    private int readByte(ByteBuffer in) throws HexFormatException {
+        if (in.remaining() < 2) {
+            throw new HexFormatException(line, "Record is cut short.");
+        }
+        byte high = in.get();
+        byte low = in.get();
+        int value = high < 0 || low < 0 ? -1 : NIBBLES[high] << 4 | NIBBLES[low];
+        if (value < 0) {
+            throw new HexFormatException(line, "Not a hex digit: " + (char) (high & 0xFF) + (char) (low & 0xFF));
+        }
+        return value;
+    }
+
+    private void skipLine(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (in.get() == '\n') {
+                line++;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes Intel HEX records straight into a ByteBuffer: digits come from a lookup table and the checksum is summed while
+ * writing, so nothing is formatted or allocated per byte or per record. Data above 64K gets extended linear address
+ * records. {@link HexReader} reads what this writes.
+ * Either writes to a channel (the buffer is flushed when full) or into a buffer that is big enough for everything,
+ * see {@link #toBytes(Iterable)}.
+ *
+ * @author Dries007
+ */
+public class HexWriter {
+
+    /**
+     * Data bytes per record.
+     */
+    public static final int RECORD_SIZE = 0x20;
+    public static final int TYPE_DATA = 0x00;
+    public static final int TYPE_EOF = 0x01;
+    public static final int TYPE_EXTENDED_LINEAR = 0x04;
+    static final byte[] DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /**
+     * ':', length, address, type and checksum
+     */
+    private static final int RECORD_OVERHEAD = 11;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] upper = new byte[2];
+    /**
+     * The upper 16 bits of the address in the last extended linear address record
+     */
+    private int base;
+
+    public HexWriter(WritableByteChannel channel) {
+        this(channel, ByteBuffer.allocateDirect(1 << 13));
+    }
+
+    private HexWriter(WritableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the complete .hex file, end of file record included
+     */
+    public static byte[] toBytes(Iterable<Section> sections) throws IOException {
+        int size = recordSize(0);
+        for (Section section : sections) {
+            size += section.getHexSize();
+        }
+        byte[] bytes = new byte[size];
+        HexWriter writer = new HexWriter(null, ByteBuffer.wrap(bytes));
+        for (Section section : sections) {
+            section.addToHexFile(writer);
+        }
+        writer.end();
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes a record with this many data bytes takes
+     */
+    public static int recordSize(int length) {
+        return RECORD_OVERHEAD + 2 * length + NEWLINE.length;
+    }
+
+    /**
+     * Writes data records, RECORD_SIZE bytes at a time. Records don't cross a 64K boundary.
+     */
+    public void data(int address, byte[] data, int offset, int length) throws IOException {
+        int i = 0;
+        while (i < length) {
+            int current = address + i;
+            int count = Math.min(Math.min(RECORD_SIZE, length - i), 0x10000 - (current & 0xFFFF));
+            if (current >>> 16 != base) {
+                base = current >>> 16;
+                upper[0] = (byte) (base >>> 8);
+                upper[1] = (byte) base;
+                record(TYPE_EXTENDED_LINEAR, 0, upper, 0, 2);
+            }
+            record(TYPE_DATA, current, data, offset + i, count);
+            i += count;
+        }
+    }
+
+    /**
+     * Writes the end of file record and flushes.
+     */
+    public void end() throws IOException {
+        record(TYPE_EOF, 0, null, 0, 0);
+        flush();
+    }
+
+    public void record(int type, int address, byte[] data, int offset, int length) throws IOException {
+        if (buffer.remaining() < recordSize(length)) {
+            flush();
+        }
+        buffer.put((byte) ':');
+        int sum = length + (address >>> 8) + address + type;
+        putByte(length);
+        putByte(address >>> 8);
+        putByte(address);
+        putByte(type);
+        for (int i = offset; i < offset + length; i++) {
+            sum += data[i];
+            putByte(data[i]);
+        }
+        putByte(-sum);
+        buffer.put(NEWLINE);
+    }
+
+    public void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putByte(int b) {
+        buffer.put(DIGITS[(b >>> 4) & 0xF]);
+        buffer.put(DIGITS[b & 0xF]);
+    }
+}
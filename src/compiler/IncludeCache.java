@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.Component;
+import compiler.components.SrcComponent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+import static util.Constants.*;
+
+/**
+ * Include files that are already read and split into lines, so a header used by every compile (or included from
+ * many places in one) is only read again when it changes on disk.
+ * Entries are keyed by canonical path and checked against the file's size and modification time on every use.
+ * Includes that only exist in memory are keyed by their text, so the same header given to many compiles is split once.
+ * Thread safe, the GUI and the daemon share {@link #SHARED}.
+ *
+ * @author Dries007
+ */
+public class IncludeCache {
+
+    public static final IncludeCache SHARED = new IncludeCache();
+    /**
+     * In memory includes kept at most, the text is the key so a caller that makes new ones all the time would
+     * otherwise fill the memory.
+     */
+    public static final int MAX_MEMORY_ENTRIES = 256;
+
+    private final ConcurrentHashMap<File, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> memoryEntries = new ConcurrentHashMap<>();
+
+    /**
+     * @param withText also keep the text of the file, for display
+     */
+    public Entry get(File file, String encoding, boolean withText) throws IOException {
+        File key = file.getCanonicalFile();
+        long lastModified = key.lastModified();
+        long length = key.length();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length && Objects.equals(entry.encoding, encoding) && (entry.text != null || !withText)) {
+            return entry;
+        }
+        ArrayList<Component> lines = new ArrayList<>();
+        StringBuilder copy = withText ? new StringBuilder() : null;
+        SourceReader.read(key, encoding, lines.listIterator(), copy);
+        entry = new Entry(key, copy == null ? null : copy.toString(), encoding, lastModified, length, lines);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * @param name the name it's included by
+     * @param text the contents, never read from disk
+     */
+    public Entry get(String name, String text) {
+        Entry entry = memoryEntries.get(text);
+        if (entry != null && entry.file.getPath().equals(name)) {
+            return entry;
+        }
+        ArrayList<Component> lines = new ArrayList<>();
+        SourceReader.read(text, lines.listIterator());
+        entry = new Entry(new File(name), text, null, -1, text.length(), lines);
+        if (memoryEntries.size() >= MAX_MEMORY_ENTRIES) {
+            memoryEntries.clear();
+        }
+        memoryEntries.put(text, entry);
+        return entry;
+    }
+
+    public void clear() {
+        entries.clear();
+        memoryEntries.clear();
+    }
+
+    /**
+     * One include file, split into lines. Immutable.
+     */
+    public static class Entry {
+
+        public final File file;
+        /**
+         * The text with normalized line endings, null unless asked for.
+         */
+        public final String text;
+        /**
+         * The macro of an "#ifndef X / #define X ... #endif" include guard around the whole file, or null.
+         */
+        public final String guard;
+        private final String encoding;
+        private final long lastModified;
+        private final long length;
+        private final int[] srcLines;
+        private final String[] contents;
+
+        private Entry(File file, String text, String encoding, long lastModified, long length, List<Component> lines) {
+            this.file = file;
+            this.text = text;
+            this.encoding = encoding;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.srcLines = new int[lines.size()];
+            this.contents = new String[lines.size()];
+            for (int i = 0; i < contents.length; i++) {
+                srcLines[i] = lines.get(i).getSrcLine();
+                contents[i] = ((SrcComponent) lines.get(i)).contents;
+            }
+            this.guard = findGuard(contents);
+        }
+
+        /**
+         * @return true if the only preprocessor lines are the include guard
+         */
+        public boolean onlyGuardDirectives() {
+            for (int i = 0; i < contents.length; i++) {
+                if (contents[i].charAt(0) == PREFIX_PRECOMPILER && !(guard != null && (i < 2 || i == contents.length - 1))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds fresh components for every line, a compile changes its components.
+         *
+         * @return the number of lines added
+         */
+        public int addTo(ListIterator<Component> components) {
+            for (int i = 0; i < contents.length; i++) {
+                components.add(new SrcComponent(srcLines[i], contents[i]));
+            }
+            return contents.length;
+        }
+
+        private static String findGuard(String[] lines) {
+            if (lines.length < 3) {
+                return null;
+            }
+            Matcher matcher = IFNDEF.matcher(lines[0]);
+            if (!matcher.matches()) {
+                return null;
+            }
+            String guard = matcher.group(1);
+            matcher = DEFINE.matcher(lines[1]);
+            if (!matcher.matches() || !matcher.group(1).equals(guard) || matcher.group(2) != null) {
+                return null;
+            }
+            // The #endif that closes the #ifndef has to be the last line.
+            int depth = 1;
+            for (int i = 2; i < lines.length; i++) {
+                if (lines[i].charAt(0) != PREFIX_PRECOMPILER) {
+                    continue;
+                }
+                if (IFDEF.matcher(lines[i]).matches() || IFNDEF.matcher(lines[i]).matches()) {
+                    depth++;
+                } else if (ENDIF.matcher(lines[i]).matches() && --depth == 0) {
+                    return i == lines.length - 1 ? guard : null;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -34,11 +34,9 @@ import compiler.components.Symbol;
 
 import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Pattern;
-
-import static java.util.regex.Pattern.CASE_INSENSITIVE;
 
 /**
  * The 8051 instruction set More info:
@@ -51,6 +49,19 @@ public class Instruction {
     public static final EnumMap<Type, Instruction> SIMPLE_INSTRUCTIONS = new EnumMap<Type, Instruction>(Type.class);
     public static final EnumMap<Type, List<Instruction>> TYPE_INSTRUCTION_ENUM_MAP = new EnumMap<Type, List<Instruction>>(Type.class);
     public static final Instruction[] INSTRUCTIONS = new Instruction[0x100];
+    /**
+     * (mnemonic, operand shapes) -> instruction. See {@link #shapeKey(Type, int...)}
+     */
+    public static final HashMap<Integer, Instruction> SHAPE_TABLE = new HashMap<>();
+
+    /**
+     * Operand shapes for operands that aren't a fixed string. Fixed strings use their Argument ordinal as shape.
+     */
+    public static final int SHAPE_IMMEDIATE = Argument.values().length;
+    public static final int SHAPE_SLASH = SHAPE_IMMEDIATE + 1;
+    public static final int SHAPE_EXPRESSION = SHAPE_IMMEDIATE + 2;
+    private static final int SHAPE_NONE = SHAPE_IMMEDIATE + 3;
+    private static final int SHAPE_COUNT = SHAPE_IMMEDIATE + 4;
 
     static {
         for (Type type : Type.values()) {
@@ -234,6 +245,18 @@ public class Instruction {
         for (int i = 0; i < 8; i++) {
             INSTRUCTIONS[opcode] = new Instruction(opcode++, 1, Type.MOV, Argument.R[i], Argument.A);                   //0xF8 -> 0xFF
         }
+
+        // The first opcode wins (AJMP and ACALL exist 8 times, the address bits get patched in later)
+        for (Instruction instruction : INSTRUCTIONS) {
+            int[] shapes = new int[instruction.arguments.length];
+            for (int i = 0; i < shapes.length; i++) {
+                shapes[i] = instruction.arguments[i].shape();
+            }
+            Integer key = shapeKey(instruction.type, shapes);
+            if (!SHAPE_TABLE.containsKey(key)) {
+                SHAPE_TABLE.put(key, instruction);
+            }
+        }
     }
 
     public final Type type;
@@ -258,6 +281,49 @@ public class Instruction {
         this(opcode, size, false, type, arguments);
     }
 
+    /**
+     * @return the instruction for this mnemonic and these operands, or null if there is none.
+     */
+    public static Instruction lookup(Type type, String[] operands) {
+        if (operands.length > 3) {
+            return null;
+        }
+        int[] shapes = new int[operands.length];
+        for (int i = 0; i < operands.length; i++) {
+            shapes[i] = shapeOf(operands[i]);
+        }
+        return SHAPE_TABLE.get(shapeKey(type, shapes));
+    }
+
+    /**
+     * Classify an operand once: a fixed string (A, R0, @DPTR, ...), #immediate, /bit or a plain expression.
+     */
+    public static int shapeOf(String operand) {
+        if (operand.isEmpty()) {
+            return SHAPE_EXPRESSION;
+        }
+        switch (operand.charAt(0)) {
+            case '#':
+                return SHAPE_IMMEDIATE;
+            case '/':
+                return SHAPE_SLASH;
+        }
+        for (Argument argument : Argument.FIXED) {
+            if (argument.string.equalsIgnoreCase(operand)) {
+                return argument.ordinal();
+            }
+        }
+        return SHAPE_EXPRESSION;
+    }
+
+    public static int shapeKey(Type type, int... shapes) {
+        int key = type.ordinal();
+        for (int i = 0; i < 3; i++) {
+            key = key * SHAPE_COUNT + (i < shapes.length ? shapes[i] : SHAPE_NONE);
+        }
+        return key;
+    }
+
     @Override
     public String toString() {
         return type + " " + Arrays.toString(arguments);
@@ -292,6 +358,7 @@ public class Instruction {
         AT_A_PLUS_PC("@A+PC");
 
         static Argument[] R = {Argument.R0, Argument.R1, Argument.R2, Argument.R3, Argument.R4, Argument.R5, Argument.R6, Argument.R7};
+        static Argument[] FIXED = {Argument.A, Argument.AB, Argument.AT_R0, Argument.AT_R1, Argument.R0, Argument.R1, Argument.R2, Argument.R3, Argument.R4, Argument.R5, Argument.R6, Argument.R7, Argument.C, Argument.AT_DPTR, Argument.DPTR, Argument.AT_A_PLUS_DPTR, Argument.AT_A_PLUS_PC};
 
         public final String string;
         public final Character prefix;
@@ -311,14 +378,22 @@ public class Instruction {
             this.symbolType = symbolType;
             this.string = null;
         }
+
+        int shape() {
+            if (string != null) {
+                return ordinal();
+            }
+            if (prefix == null) {
+                return SHAPE_EXPRESSION;
+            }
+            return prefix == '#' ? SHAPE_IMMEDIATE : SHAPE_SLASH;
+        }
     }
 
     public static enum Type {
 
         ACALL, ADD, ADDC, AJMP, ANL, CJNE, CLR, CPL, DA, DEC, DIV, DJNZ, INC, JB, JBC, JC, JMP, JNB, JNC, JNZ, JZ, LCALL, LJMP, MOV, MOVC, MOVX, MUL, NOP, ORL, POP, PUSH, RET, RETI, RL, RLC, RR, RRC, SETB, SJMP, SUBB, SWAP, XCH, XCHD, XRL, Undefined;
 
-        public Pattern pattern = Pattern.compile("(?:^|\\s+)" + this.name() + "(?:\\s+|$)", CASE_INSENSITIVE);
-
         public List<Instruction> getInstructions() {
             return Instruction.TYPE_INSTRUCTION_ENUM_MAP.get(this);
         }
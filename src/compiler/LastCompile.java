@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.*;
+import util.CompiledExpression;
+
+import java.util.*;
+
+/**
+ * What a compile with a {@link CompileCache} left behind, so the next compile can patch it when only the values of
+ * symbols changed: an edit to EQU, DATA or BIT lines, the usual way to tune a constant.
+ * Then only the symbols that (indirectly) depend on the edited ones are evaluated again, and only the instructions and
+ * DB/DW that use one of them are resolved again and written over their bytes in a copy of the image. Addresses,
+ * sections and the other components are taken as they are. Anything that could move code (a line that changed and
+ * isn't a definition, another number of lines, an ORG or DS that depends on an edited symbol) or that doesn't
+ * evaluate cleanly goes through the full compile instead, which also reports the error.
+ * Nothing of the last compile is changed, edited symbols and re-resolved components are new objects.
+ *
+ * @author Dries007
+ */
+final class LastCompile {
+
+    final String[] srcs;
+    final Lexer.Line[] lines;
+    /**
+     * The symbols that were there before the lexer (precompiled headers) and their values.
+     */
+    private final HashMap<String, Integer> defined;
+    /**
+     * Per line, where its components start in finalIndex. One longer than lines.
+     */
+    private final int[] lineStart;
+    private final int componentCount;
+    /**
+     * Only until {@link #finish(Parser)}.
+     */
+    private List<Component> created;
+    /**
+     * Per component the lexer made, its index in finals, or -1 if it was resolved away (labels, definitions, operands).
+     */
+    private int[] finalIndex;
+    private Component[] finals;
+    private SymbolTable symbols;
+    private List<Section> sections;
+    private MemoryImage image;
+    /**
+     * Lowercase symbol name to the lines that use it. Made when first needed, shared with the compiles patched from
+     * this one.
+     */
+    private HashMap<String, List<Integer>> references;
+    /**
+     * Lines that were edited, their references are updated when this compile is done.
+     */
+    private List<Integer> changed = Collections.emptyList();
+    private Lexer.Line[] changedFrom;
+    private int evaluated;
+
+    LastCompile(String[] srcs, Lexer.Line[] lines, HashMap<String, Integer> defined, List<Component> created, int[] lineStart) {
+        this.srcs = srcs;
+        this.lines = lines;
+        this.defined = defined;
+        this.created = created;
+        this.lineStart = lineStart;
+        this.componentCount = created.size();
+    }
+
+    private LastCompile(LastCompile last, String[] srcs, Lexer.Line[] lines, Component[] finals, List<Integer> changed, int evaluated) {
+        this.srcs = srcs;
+        this.lines = lines;
+        this.defined = last.defined;
+        this.lineStart = last.lineStart;
+        this.componentCount = last.componentCount;
+        this.finalIndex = last.finalIndex;
+        this.finals = finals;
+        this.sections = last.sections;
+        this.references = last.references;
+        this.changed = changed;
+        this.changedFrom = last.lines;
+        this.evaluated = evaluated;
+    }
+
+    /**
+     * The number of components the lexer made, the same for a patched compile.
+     */
+    int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * @return the number of symbols that were evaluated again
+     */
+    int getEvaluated() {
+        return evaluated;
+    }
+
+    int getChanged() {
+        return changed.size();
+    }
+
+    /**
+     * Called when the compile is done, keeps what it ended with.
+     *
+     * @return false if the components didn't end up in the order they were made in, this can't be patched then
+     */
+    boolean finish(Parser parser) {
+        if (finals == null) {
+            finals = parser.components.toArray(new Component[parser.components.size()]);
+            finalIndex = new int[created.size()];
+            int next = 0;
+            for (int i = 0; i < finalIndex.length; i++) {
+                finalIndex[i] = next < finals.length && created.get(i) == finals[next] ? next++ : -1;
+            }
+            created = null;
+            if (next != finals.length) {
+                return false;
+            }
+        }
+        if (references != null) {
+            for (int line : changed) {
+                removeReferences(changedFrom[line], line);
+                addReferences(lines[line], line);
+            }
+        }
+        changedFrom = null;
+        symbols = parser.symbols;
+        sections = new ArrayList<>(parser.sections);
+        image = parser.image;
+        return true;
+    }
+
+    /**
+     * Adds the sections of the last compile to the parser of a patched one, its image already holds their bytes.
+     */
+    void addSections(Parser parser) throws Exception {
+        for (Section section : sections) {
+            parser.addSection(new Section(parser.image, section));
+        }
+    }
+
+    /**
+     * Called instead of the lexer.
+     *
+     * @return the patched compile, with the components, symbols and image of the parser filled in. Null if the
+     * source has to be compiled in full, the parser is as it was then.
+     */
+    LastCompile update(Parser parser) {
+        if (parser.components.size() != srcs.length || !isSameDefined(parser.symbols)) {
+            return null;
+        }
+        try {
+            LastCompile patched = patch(parser);
+            if (patched != null) {
+                return patched;
+            }
+        } catch (Exception e) {
+            // The full compile reports it
+        } finally {
+            parser.currentLocation.intValue = null;
+        }
+        parser.symbols.keySet().retainAll(defined.keySet());
+        return null;
+    }
+
+    private LastCompile patch(Parser parser) throws Exception {
+        String[] newSrcs = new String[srcs.length];
+        int[] srcLines = new int[srcs.length];
+        ArrayList<Integer> changed = new ArrayList<>();
+        int n = 0;
+        for (Component component : parser.components) {
+            newSrcs[n] = ((SrcComponent) component).contents;
+            srcLines[n] = component.getSrcLine();
+            if (!newSrcs[n].equals(srcs[n])) {
+                changed.add(n);
+            }
+            n++;
+        }
+
+        // The edited definitions, and then everything that uses them
+        Lexer.Line[] newLines = lines.clone();
+        HashMap<String, Integer> definitions = new HashMap<>();
+        ArrayDeque<String> todo = new ArrayDeque<>();
+        for (int line : changed) {
+            Lexer.Line lexed = Lexer.lex(newSrcs[line]);
+            if (!isDefinition(lexed) || !isDefinition(lines[line]) || lexed.getKeyword(0) != lines[line].getKeyword(0)
+                    || !lexed.getText(0).equalsIgnoreCase(lines[line].getText(0))) {
+                return null;
+            }
+            newLines[line] = lexed;
+            String key = lexed.getText(0).toLowerCase();
+            definitions.put(key, line);
+            todo.add(key);
+        }
+        HashSet<Integer> uses = new HashSet<>();
+        HashMap<String, List<Integer>> references = getReferences();
+        while (!todo.isEmpty()) {
+            List<Integer> using = references.get(todo.remove());
+            if (using == null) {
+                continue;
+            }
+            for (int line : using) {
+                Lexer.Line lexed = newLines[line];
+                if (isDefinition(lexed)) {
+                    String key = lexed.getText(0).toLowerCase();
+                    if (!definitions.containsKey(key)) {
+                        definitions.put(key, line);
+                        todo.add(key);
+                    }
+                } else if (isPatchable(lexed)) {
+                    uses.add(line);
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        SymbolTable table = parser.symbols;
+        for (Map.Entry<String, Symbol> entry : symbols.entrySet()) {
+            if (!table.containsKey(entry.getKey())) {
+                table.put(entry.getKey(), entry.getValue());
+            }
+        }
+        int evaluated = evaluate(table, definitions, newLines, srcLines);
+        if (evaluated == -1) {
+            return null;
+        }
+
+        Component[] newFinals = finals.clone();
+        ArrayList<Component> resolved = new ArrayList<>();
+        HashMap<String, Symbol> labels = new HashMap<>(); // Already in the table
+        EarlySymbols early = new EarlySymbols(table);
+        for (int line : uses) {
+            LinkedList<Component> fresh = new LinkedList<>();
+            labels.clear();
+            newLines[line].addTo(fresh.listIterator(), srcLines[line], labels, null);
+            InstructionComponent.resolveInstructions(fresh, early);
+            int next = lineStart[line];
+            for (Component component : fresh) {
+                if (component instanceof Symbol) {
+                    continue;
+                }
+                while (next < lineStart[line + 1] && finalIndex[next] == -1) {
+                    next++;
+                }
+                if (next == lineStart[line + 1]) {
+                    return null;
+                }
+                Component old = finals[finalIndex[next]];
+                if (old.getClass() != component.getClass()) {
+                    return null; // An operand that is still source
+                }
+                component.address = old.address;
+                parser.currentLocation.intValue = old.address;
+                component.tryResolve(old.address, table);
+                component.setResolved(true);
+                int[] data = component.getData();
+                if (data.length != old.getData().length) {
+                    return null;
+                }
+                for (int b : data) {
+                    if (b > 0xFF) {
+                        return null;
+                    }
+                }
+                newFinals[finalIndex[next++]] = component;
+                resolved.add(component);
+            }
+        }
+
+        parser.image.copyFrom(image);
+        for (Component component : resolved) {
+            int[] data = component.getData();
+            for (int i = 0; i < data.length; i++) {
+                parser.image.set(component.address + i, data[i]);
+            }
+        }
+        parser.components.clear();
+        Collections.addAll(parser.components, newFinals);
+        return new LastCompile(this, newSrcs, newLines, newFinals, changed, evaluated);
+    }
+
+    /**
+     * Evaluates the definitions in dependency order, each into a new symbol in the table.
+     *
+     * @return the number of symbols evaluated, -1 if one isn't defined or they depend on each other
+     */
+    private int evaluate(SymbolTable table, HashMap<String, Integer> definitions, Lexer.Line[] newLines, int[] srcLines) {
+        HashMap<String, List<String>> dependents = new HashMap<>();
+        HashMap<String, Integer> waitingFor = new HashMap<>();
+        ArrayDeque<String> ready = new ArrayDeque<>();
+        for (Map.Entry<String, Integer> definition : definitions.entrySet()) {
+            int count = 0;
+            for (String reference : SymbolResolver.references(newLines[definition.getValue()].getText(1))) {
+                if (definitions.containsKey(reference)) {
+                    dependents.computeIfAbsent(reference, k -> new ArrayList<>(2)).add(definition.getKey());
+                    count++;
+                }
+            }
+            if (count == 0) {
+                ready.add(definition.getKey());
+            } else {
+                waitingFor.put(definition.getKey(), count);
+            }
+        }
+        int done = 0;
+        while (!ready.isEmpty()) {
+            String key = ready.remove();
+            Lexer.Line lexed = newLines[definitions.get(key)];
+            Symbol.Type type = (Symbol.Type) lexed.getKeyword(0);
+            String expression = lexed.getText(1);
+            long result = type.evaluator.compile(expression, table).tryEvaluate(table);
+            if (CompiledExpression.status(result) != CompiledExpression.DEFINED) {
+                return -1;
+            }
+            Symbol symbol = new Symbol(srcLines[definitions.get(key)], type, lexed.getText(0));
+            symbol.intValue = CompiledExpression.value(result);
+            symbol.stringValue = expression;
+            table.put(key, symbol);
+            done++;
+            List<String> waiting = dependents.get(key);
+            if (waiting != null) {
+                for (String dependent : waiting) {
+                    if (waitingFor.merge(dependent, -1, Integer::sum) == 0) {
+                        ready.add(dependent);
+                    }
+                }
+            }
+        }
+        return done == definitions.size() ? done : -1;
+    }
+
+    /**
+     * The symbols as a full compile has them when it matches instructions: labels and what depends on them aren't
+     * known yet. So operands end up the same, a value or the expression to evaluate once the addresses are known.
+     */
+    private static class EarlySymbols extends HashMap<String, Symbol> {
+
+        private final SymbolTable table;
+        private final HashMap<String, Boolean> late = new HashMap<>();
+        private final Symbol undefined = new Symbol();
+
+        EarlySymbols(SymbolTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public Symbol get(Object key) {
+            return isLate((String) key) ? undefined : table.get(key);
+        }
+
+        private boolean isLate(String key) {
+            Boolean known = late.get(key);
+            if (known != null) {
+                return known;
+            }
+            Symbol symbol = table.get(key);
+            boolean result = false;
+            if (symbol != null) {
+                if (symbol.type == null || symbol.type == Symbol.Type.LABEL) { // null is $
+                    result = true;
+                } else if (symbol.type.evaluate && symbol.stringValue != null) {
+                    late.put(key, false);
+                    for (String reference : SymbolResolver.references(symbol.stringValue)) {
+                        if (isLate(reference)) {
+                            result = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            late.put(key, result);
+            return result;
+        }
+    }
+
+    private boolean isSameDefined(Map<String, Symbol> symbols) {
+        if (symbols.size() != defined.size()) {
+            return false;
+        }
+        for (Map.Entry<String, Symbol> entry : symbols.entrySet()) {
+            if (!defined.containsKey(entry.getKey()) || !Objects.equals(defined.get(entry.getKey()), entry.getValue().intValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true for NAME EQU|DATA|BIT value
+     */
+    private static boolean isDefinition(Lexer.Line line) {
+        Enum<?> keyword = line.getKeyword(0);
+        return line.size() == 2 && (keyword == Symbol.Type.EQU || keyword == Symbol.Type.DATA || keyword == Symbol.Type.BIT) && line.getKeyword(1) == null;
+    }
+
+    /**
+     * @return true if the line only has labels, instructions and DB/DW, nothing that changes addresses
+     */
+    private static boolean isPatchable(Lexer.Line line) {
+        for (int i = 0; i < line.size(); i++) {
+            Enum<?> keyword = line.getKeyword(i);
+            if (keyword instanceof Symbol.Type ? keyword != Symbol.Type.LABEL : keyword == Bytes.Type.DS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private HashMap<String, List<Integer>> getReferences() {
+        if (references == null) {
+            references = new HashMap<>();
+            for (int line = 0; line < lines.length; line++) {
+                addReferences(lines[line], line);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Operands, expressions and DB/DW/DS values can use symbols. Labels and the names of definitions don't.
+     */
+    private void addReferences(Lexer.Line lexed, int line) {
+        for (int i = 0; i < lexed.size(); i++) {
+            if (lexed.getKeyword(i) == null || lexed.getKeyword(i) instanceof Bytes.Type) {
+                for (String reference : SymbolResolver.references(lexed.getText(i))) {
+                    List<Integer> using = references.computeIfAbsent(reference, k -> new ArrayList<>(2));
+                    if (using.isEmpty() || using.get(using.size() - 1) != line) {
+                        using.add(line);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeReferences(Lexer.Line lexed, int line) {
+        for (int i = 0; i < lexed.size(); i++) {
+            if (lexed.getKeyword(i) == null || lexed.getKeyword(i) instanceof Bytes.Type) {
+                for (String reference : SymbolResolver.references(lexed.getText(i))) {
+                    List<Integer> using = references.get(reference);
+                    if (using != null) {
+                        using.remove(Integer.valueOf(line));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.*;
+import util.exceptions.SymbolAlreadyDefinedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Single pass line classifier. Replaces the per type regex sweeps over the component list.
+ * Every SrcComponent is scanned once, left to right, and split into the same components the regexes used to produce:
+ * labels, EQU/DATA/BIT symbols, ORG/END, DB/DW/DS and mnemonics. Everything after the keyword is left as a SrcComponent.
+ *
+ * @author Dries007
+ */
+public class Lexer {
+
+    /**
+     * Keywords bucketed by their (uppercase) first letter, so a word can be looked up without allocating a String.
+     */
+    private static final Enum<?>[][] KEYWORDS = new Enum<?>[26][];
+
+    static {
+        Enum<?>[] all = new Enum<?>[Symbol.Type.values().length + Bytes.Type.values().length + Instruction.Type.values().length];
+        int count = 0;
+        for (Symbol.Type type : Symbol.Type.values()) {
+            if (type != Symbol.Type.LABEL) {
+                all[count++] = type;
+            }
+        }
+        for (Bytes.Type type : Bytes.Type.values()) {
+            all[count++] = type;
+        }
+        for (Instruction.Type type : Instruction.Type.values()) {
+            all[count++] = type;
+        }
+        int[] sizes = new int[KEYWORDS.length];
+        for (int i = 0; i < count; i++) {
+            sizes[bucket(all[i].name().charAt(0))]++;
+        }
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            KEYWORDS[i] = new Enum<?>[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int bucket = bucket(all[i].name().charAt(0));
+            KEYWORDS[bucket][sizes[bucket]++] = all[i];
+        }
+    }
+
+    private Lexer() {
+    }
+
+    public static void process(List<Component> components, Map<String, Symbol> symbols) throws SymbolAlreadyDefinedException {
+        process(components, symbols, null);
+    }
+
+    /**
+     * @param cache if not null, lines that were lexed by a previous compile are taken from it instead of scanned again
+     * @return the number of lines that were lexed, not taken from the cache
+     */
+    public static int process(List<Component> components, Map<String, Symbol> symbols, CompileCache cache) throws SymbolAlreadyDefinedException {
+        int lexed = 0;
+        if (cache == null) {
+            ListIterator<Component> i = components.listIterator();
+            while (i.hasNext()) {
+                Component component = i.next();
+                if (component instanceof SrcComponent) {
+                    i.remove();
+                    lex(((SrcComponent) component).contents).addTo(i, component.getSrcLine(), symbols, null);
+                    lexed++;
+                }
+            }
+            return lexed;
+        }
+        // Every component is a line of source after the preprocessor
+        String[] srcs = new String[components.size()];
+        int n = 0;
+        for (Component component : components) {
+            srcs[n++] = ((SrcComponent) component).contents;
+        }
+        Line[] lines = new Line[n];
+        cache.getLines(srcs, lines);
+        HashMap<String, Integer> defined = new HashMap<>(); // By the preprocessor, from precompiled headers
+        for (Map.Entry<String, Symbol> entry : symbols.entrySet()) {
+            defined.put(entry.getKey(), entry.getValue().intValue);
+        }
+        ArrayList<Component> created = new ArrayList<>(n * 2);
+        int[] lineStart = new int[n + 1];
+        ListIterator<Component> i = components.listIterator();
+        for (n = 0; i.hasNext(); n++) {
+            Component component = i.next();
+            i.remove();
+            if (lines[n] == null) {
+                lines[n] = lex(srcs[n]);
+                lexed++;
+            }
+            lineStart[n] = created.size();
+            lines[n].addTo(i, component.getSrcLine(), symbols, created);
+        }
+        lineStart[n] = created.size();
+        cache.putLines(srcs, lines);
+        cache.lexed(new LastCompile(srcs, lines, defined, created, lineStart));
+        return lexed;
+    }
+
+    static Line lex(String src) {
+        final int length = src.length();
+        final Line line = new Line();
+        int pos = skipWhitespace(src, 0);
+
+        // Any amount of labels
+        int end;
+        while ((end = skipWord(src, pos)) != pos && end < length && src.charAt(end) == ':') {
+            line.add(Symbol.Type.LABEL, src.substring(pos, end));
+            pos = skipWhitespace(src, end + 1);
+        }
+        if (pos == length) {
+            return line;
+        }
+
+        // NAME EQU|DATA|BIT value
+        if (end != pos && end < length && Character.isWhitespace(src.charAt(end))) {
+            int second = skipWhitespace(src, end);
+            int secondEnd = skipWord(src, second);
+            if (secondEnd < length && Character.isWhitespace(src.charAt(secondEnd))) {
+                Enum<?> keyword = keyword(src, second, secondEnd);
+                if (keyword == Symbol.Type.EQU || keyword == Symbol.Type.DATA || keyword == Symbol.Type.BIT) {
+                    line.add(keyword, src.substring(pos, end));
+                    line.addSrc(src, secondEnd);
+                    return line;
+                }
+            }
+        }
+
+        // ORG, END, DB, DW, DS or a mnemonic
+        Enum<?> keyword = end == length || Character.isWhitespace(src.charAt(end)) ? keyword(src, pos, end) : null;
+        if (keyword instanceof Symbol.Type || keyword instanceof Instruction.Type) {
+            line.add(keyword, null);
+            line.addSrc(src, end);
+        } else if (keyword instanceof Bytes.Type && end < length) {
+            line.add(keyword, src.substring(end).trim());
+        } else {
+            line.addSrc(src, pos);
+        }
+        return line;
+    }
+
+    private static Enum<?> keyword(String src, int start, int end) {
+        if (start == end) {
+            return null;
+        }
+        int bucket = bucket(src.charAt(start));
+        if (bucket < 0) {
+            return null;
+        }
+        for (Enum<?> keyword : KEYWORDS[bucket]) {
+            String name = keyword.name();
+            if (name.length() == end - start && src.regionMatches(true, start, name, 0, name.length())) {
+                return keyword;
+            }
+        }
+        return null;
+    }
+
+    private static int bucket(char c) {
+        c = Character.toUpperCase(c);
+        return c >= 'A' && c <= 'Z' ? c - 'A' : -1;
+    }
+
+    private static int skipWhitespace(String src, int pos) {
+        while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipWord(String src, int pos) {
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if (!(c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * The result of lexing one line: a keyword (or null for plain source) and a text per component.
+     * Immutable, so it can be kept between compiles.
+     */
+    static class Line {
+
+        private Enum<?>[] keywords = new Enum<?>[2];
+        private String[] texts = new String[2];
+        private int size;
+
+        private void add(Enum<?> keyword, String text) {
+            if (size == keywords.length) {
+                keywords = Arrays.copyOf(keywords, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            keywords[size] = keyword;
+            texts[size++] = text;
+        }
+
+        private void addSrc(String src, int start) {
+            if (start < src.length()) {
+                String text = src.substring(start).trim();
+                if (!text.isEmpty()) {
+                    add(null, text);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the keyword of a component, null for plain source
+         */
+        Enum<?> getKeyword(int i) {
+            return keywords[i];
+        }
+
+        /**
+         * @return the name of a symbol, the operands of DB/DW/DS or the plain source
+         */
+        String getText(int i) {
+            return texts[i];
+        }
+
+        /**
+         * @param created if not null, every component is added to it as well
+         */
+        void addTo(ListIterator<Component> out, int srcLine, Map<String, Symbol> symbols, List<Component> created) throws SymbolAlreadyDefinedException {
+            for (int i = 0; i < size; i++) {
+                Enum<?> keyword = keywords[i];
+                Component component;
+                if (keyword == null) {
+                    component = new SrcComponent(srcLine, texts[i]);
+                } else if (keyword instanceof Symbol.Type) {
+                    Symbol symbol = new Symbol(srcLine, (Symbol.Type) keyword, texts[i]);
+                    if (symbol.key != null) {
+                        String key = symbol.key.toLowerCase();
+                        if (symbols.containsKey(key)) {
+                            throw new SymbolAlreadyDefinedException(symbol, symbol.toString());
+                        }
+                        symbols.put(key, symbol);
+                    }
+                    component = symbol;
+                } else if (keyword instanceof Bytes.Type) {
+                    component = new Bytes(srcLine, (Bytes.Type) keyword, texts[i]);
+                } else {
+                    component = new InstructionComponent(srcLine, (Instruction.Type) keyword);
+                }
+                out.add(component);
+                if (created != null) {
+                    created.add(component);
+                }
+            }
+        }
+    }
+}
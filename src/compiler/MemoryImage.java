@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import java.util.Arrays;
+
+/**
+ * The whole 64K code space of an 8051: the bytes and a bit per byte that says if it's used.
+ * Sections write into one image, so overlapping code is found the moment a byte is written twice, no matter in what
+ * order the ORGs are. The HEX writer, the hex table and the uploader all read from the same image.
+ *
+ * @author Dries007
+ */
+public class MemoryImage {
+
+    public static final int SIZE = 0x10000;
+    /**
+     * Same as a flash page of the XC888, the unit the uploader works in.
+     */
+    public static final int PAGE_SIZE = 0x40;
+    public static final int PAGES = SIZE / PAGE_SIZE;
+
+    final byte[] data = new byte[SIZE];
+    private final long[] used = new long[SIZE / 64];
+    private int usedBytes;
+
+    /**
+     * @return false if the address was already used, the byte isn't written then
+     */
+    public boolean put(int address, int value) {
+        long bit = 1L << address;
+        if ((used[address >>> 6] & bit) != 0) {
+            return false;
+        }
+        used[address >>> 6] |= bit;
+        usedBytes++;
+        data[address] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Writes over whatever was there before.
+     */
+    public void set(int address, int value) {
+        long bit = 1L << address;
+        if ((used[address >>> 6] & bit) == 0) {
+            used[address >>> 6] |= bit;
+            usedBytes++;
+        }
+        data[address] = (byte) value;
+    }
+
+    /**
+     * @return the byte, unused bytes are 0xFF like erased flash
+     */
+    public int get(int address) {
+        return isUsed(address) ? data[address] & 0xFF : 0xFF;
+    }
+
+    public boolean isUsed(int address) {
+        return (used[address >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * @return the first used address at or after from, or -1
+     */
+    public int nextUsed(int from) {
+        if (from >= SIZE) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long bits = used[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == used.length) {
+                return -1;
+            }
+            bits = used[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return the first unused address at or after from, or SIZE
+     */
+    public int nextUnused(int from) {
+        if (from >= SIZE) {
+            return SIZE;
+        }
+        int word = from >>> 6;
+        long bits = ~used[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == used.length) {
+                return SIZE;
+            }
+            bits = ~used[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    public int getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return true if any byte of the page is used
+     */
+    public boolean isPageUsed(int page) {
+        return used[page] != 0; // A page is exactly one word of the bitset
+    }
+
+    /**
+     * @return true if every byte of the page is used, no other section can write into it anymore
+     */
+    public boolean isPageFull(int page) {
+        return used[page] == -1L;
+    }
+
+    /**
+     * Makes this image the same as another one.
+     */
+    public void copyFrom(MemoryImage image) {
+        System.arraycopy(image.data, 0, data, 0, SIZE);
+        System.arraycopy(image.used, 0, used, 0, used.length);
+        usedBytes = image.usedBytes;
+    }
+
+    /**
+     * @return one past the highest used address, 0 if nothing is used
+     */
+    public int getEnd() {
+        for (int word = used.length - 1; word >= 0; word--) {
+            if (used[word] != 0) {
+                return (word << 6) + 64 - Long.numberOfLeadingZeros(used[word]);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the bytes from address 0 up to the last used one, unused bytes are 0xFF. What ends up in flash.
+     */
+    public byte[] toBinary() {
+        byte[] bytes = Arrays.copyOf(data, getEnd());
+        int start = nextUnused(0);
+        while (start < bytes.length) {
+            int end = nextUsed(start);
+            Arrays.fill(bytes, start, end, (byte) 0xFF);
+            start = nextUnused(end);
+        }
+        return bytes;
+    }
+
+    /**
+     * The reverse of {@link #toBinary()}. 0xFF bytes are left unused, erased flash reads the same.
+     */
+    public static MemoryImage fromBinary(byte[] bytes) {
+        MemoryImage image = new MemoryImage();
+        for (int address = 0; address < bytes.length; address++) {
+            if (bytes[address] != (byte) 0xFF) {
+                image.set(address, bytes[address]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Copies a page, unused bytes are 0xFF.
+     */
+    public void getPage(int page, byte[] out, int offset) {
+        int start = page * PAGE_SIZE;
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            out[offset + i] = isUsed(start + i) ? data[start + i] : (byte) 0xFF;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import org.apache.commons.io.FilenameUtils;
+import util.exceptions.HexFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The kinds of file a compile can produce. Each can also be read back into an image, for the uploader.
+ *
+ * @author Dries007
+ */
+public enum OutputFormat {
+    /**
+     * Intel HEX, the default
+     */
+    HEX("hex") {
+        @Override
+        public byte[] encode(List<Section> sections, MemoryImage image) throws IOException {
+            return HexWriter.toBytes(sections);
+        }
+
+        @Override
+        public MemoryImage decode(byte[] bytes) throws HexFormatException {
+            return HexReader.readImage(ByteBuffer.wrap(bytes));
+        }
+    },
+    /**
+     * The raw flash contents from address 0, gaps filled with 0xFF
+     */
+    BIN("bin") {
+        @Override
+        public byte[] encode(List<Section> sections, MemoryImage image) {
+            return image.toBinary();
+        }
+
+        @Override
+        public MemoryImage decode(byte[] bytes) throws HexFormatException {
+            if (bytes.length > MemoryImage.SIZE) {
+                throw new HexFormatException(1, "Binary image is bigger than 64K.");
+            }
+            return MemoryImage.fromBinary(bytes);
+        }
+    },
+    /**
+     * Motorola S-records
+     */
+    SREC("s19") {
+        @Override
+        public byte[] encode(List<Section> sections, MemoryImage image) {
+            return SRecord.toBytes(image);
+        }
+
+        @Override
+        public MemoryImage decode(byte[] bytes) throws HexFormatException {
+            return SRecord.readImage(ByteBuffer.wrap(bytes));
+        }
+    };
+
+    public final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @param sections the sections of a compile, in source order
+     * @param image    the image the sections were written into
+     * @return the complete file
+     */
+    public abstract byte[] encode(List<Section> sections, MemoryImage image) throws IOException;
+
+    public abstract MemoryImage decode(byte[] bytes) throws HexFormatException;
+
+    /**
+     * @return the output file that belongs to a source file (same folder, same base name)
+     */
+    public File forSource(File srcFile) {
+        return new File(srcFile.getParentFile(), FilenameUtils.getBaseName(srcFile.getName()) + "." + extension);
+    }
+
+    /**
+     * @param name the name or the extension, any case
+     */
+    public static OutputFormat forName(String name) {
+        for (OutputFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown output format: " + name);
+    }
+}
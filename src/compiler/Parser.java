@@ -30,19 +30,12 @@
  */
 package compiler;
 
-import JavaEasembly.Main;
 import compiler.components.*;
 import util.exceptions.CompileException;
-import util.exceptions.SymbolUndefinedException;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
-import static util.Constants.*;
-
 /**
  * @author Dries007
  */
@@ -51,59 +44,84 @@ public class Parser {
     public final Symbol currentLocation = new Symbol();
     public final LinkedList<Component> components = new LinkedList<>();
     public final LinkedList<Section> sections = new LinkedList<>();
-    public final HashMap<String, Symbol> symbols = new HashMap<>();
+    /**
+     * The code of all sections, filled in by MAKE_HEX.
+     */
+    public final MemoryImage image = new MemoryImage();
+    public final SymbolTable symbols;
     public final LinkedHashMap<String, String> includeFiles = new LinkedHashMap<>();
     public final String src;
+    public final CompileCache cache;
+    public final CompileSession session;
+    public final CompileStats stats = new CompileStats();
     public String postPre;
+    /**
+     * May be null.
+     */
+    public SectionListener sectionListener;
 
     private Stage stage = Stage.INIT;
+    /**
+     * Set when the last compile was patched instead of resolved again, see {@link LastCompile}.
+     */
+    private LastCompile patched;
 
     public Parser(String src) {
-        this.src = src.replaceAll("\\r\\n", "\n");
+        this(src, null);
     }
 
-    public boolean hasWork() {
-        return stage != Stage.DONE;
+    /**
+     * @param cache kept between compiles of the same source, may be null
+     */
+    public Parser(String src, CompileCache cache) {
+        this(src, CompileSession.fromMain(), cache);
     }
 
-    public void doWork() throws Exception {
-        stage = stage.nextStep;
-        stage.work(this);
+    /**
+     * Reads the source from session.srcFile.
+     *
+     * @param cache kept between compiles of the same source, may be null
+     */
+    public Parser(CompileSession session, CompileCache cache) {
+        this(null, session, cache);
     }
 
-    private boolean resolveAll() throws CompileException {
-        boolean resolvedAny = false;
-        currentLocation.intValue = 0;
-        ListIterator<Component> i = components.listIterator();
-        while (i.hasNext()) {
-            Component component = i.next();
-            if (component instanceof Symbol && ((Symbol) component).type == Symbol.Type.ORG) {
-                currentLocation.intValue = ((Symbol) component).intValue;
-            }
-            component.address = currentLocation.intValue;
-            if (component instanceof SrcComponent) {
-                throw new CompileException(component, "Unsolved src: " + ((SrcComponent) component).contents);
-            }
-            if (!component.isResolved()) {
-                try {
-                    component.tryResolve(currentLocation.intValue, symbols);
-                    component.setResolved(true);
-
-                    if (component instanceof Symbol && ((Symbol) component).type == Symbol.Type.LABEL) {
-                        i.remove();
-                    }
+    /**
+     * Doesn't use any global state, so any number of these can run at the same time as long as they don't share a
+     * cache.
+     *
+     * @param src     the source, or null to read session.srcFile
+     * @param session where to find includes and where to put the output
+     * @param cache   kept between compiles of the same source, may be null
+     */
+    public Parser(String src, CompileSession session, CompileCache cache) {
+        this.src = src;
+        this.session = session;
+        this.cache = cache;
+        this.symbols = new SymbolTable(cache, stats);
+        if (cache != null) {
+            cache.startCompile();
+        }
+    }
 
-                    resolvedAny = true;
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    throw new CompileException(component, "", e);
-                } catch (SymbolUndefinedException ignored) {
+    public boolean hasWork() {
+        return stage != Stage.DONE;
+    }
 
-                }
-            }
-            currentLocation.intValue += component.getSize(symbols);
+    public void doWork() throws Exception {
+        stage = stage.nextStep;
+        long start = System.nanoTime();
+        try {
+            stage.work(this);
+        } catch (Exception e) {
+            stats.stageNanos[stage.ordinal()] += System.nanoTime() - start;
+            CompileMetrics.METRICS.add(stats, true);
+            throw e;
+        }
+        stats.stageNanos[stage.ordinal()] += System.nanoTime() - start;
+        if (stage.nextStep == Stage.DONE) {
+            CompileMetrics.METRICS.add(stats, false);
         }
-        currentLocation.intValue = null;
-        return resolvedAny;
     }
 
     public Object[][] getComponents() {
@@ -133,17 +151,26 @@ public class Parser {
         return data.toArray(new String[data.size()][]);
     }
 
+    void addSection(Section section) throws Exception {
+        sections.add(section);
+        if (sectionListener != null) {
+            sectionListener.sectionDone(section, image);
+        }
+    }
+
     private void makeHexFile() throws IOException, CompileException {
-        File file = new File(Main.srcFile.getParentFile(), FilenameUtils.getBaseName(Main.srcFile.getName()) + ".hex");
-        if (file.exists()) {
-            file.delete();
+        HexOutput output = session.output;
+        if (output == null) {
+            return;
         }
-        LinkedList<String> lines = new LinkedList<>();
-        for (Section section : sections) {
-            section.addToHexFile(lines);
+        byte[] hex = output.getFormat().encode(sections, image);
+        if (cache != null && cache.isOutputUpToDate(output, hex)) {
+            return;
+        }
+        output.write(hex);
+        if (cache != null) {
+            cache.setOutput(output, hex);
         }
-        lines.add(":00000001FF");
-        FileUtils.writeLines(file, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT), lines);
     }
 
     public Stage getStage() {
@@ -160,27 +187,24 @@ public class Parser {
         MAKE_HEX(DONE) {
                     @Override
                     public void work(Parser parser) throws Exception {
-                        int lastSize = -1;
-                        int lastStart = -1;
+                        if (parser.patched != null) {
+                            parser.patched.addSections(parser);
+                            parser.stats.bytes = parser.image.getUsedBytes();
+                            parser.makeHexFile();
+                            parser.cache.compiled(parser);
+                            return;
+                        }
                         Section currentSection = null;
                         for (Component component : parser.components) {
                             if (component instanceof Symbol) {
                                 if (((Symbol) component).type == Symbol.Type.ORG) {
                                     if (currentSection != null) {
-                                        lastSize = currentSection.getSize();
-                                        parser.sections.add(currentSection);
+                                        parser.addSection(currentSection);
                                     }
-
-                                    if (lastStart != -1 && lastStart + lastSize > ((Symbol) component).intValue) {
-                                        throw new CompileException(component, "Section overlap!");
-                                    }
-
-                                    currentSection = new Section(((Symbol) component).intValue);
-                                    lastStart = currentSection.startaddress;
+                                    currentSection = new Section(parser.image, ((Symbol) component).intValue);
                                 } else if (((Symbol) component).type == Symbol.Type.END) {
                                     if (currentSection != null) {
-                                        lastSize = currentSection.getSize();
-                                        parser.sections.add(currentSection);
+                                        parser.addSection(currentSection);
                                     }
                                     currentSection = null;
                                 }
@@ -188,62 +212,71 @@ public class Parser {
                                 if (currentSection == null) {
                                     throw new CompileException(component, "Component doesn't belong to a code section.");
                                 }
-                                currentSection.addData(component);
+                                currentSection.addData(component); // Throws on overlap
                             }
                         }
                         if (currentSection != null) {
-                            parser.sections.add(currentSection);
+                            parser.addSection(currentSection);
                         }
+                        parser.stats.bytes = parser.image.getUsedBytes();
                         parser.makeHexFile();
+                        if (parser.cache != null) {
+                            parser.cache.compiled(parser);
+                        }
                     }
                 },
         RESOLVE_ALL(MAKE_HEX) {
                     @Override
                     public void work(Parser parser) throws Exception {
-                        //noinspection StatementWithEmptyBody
-                        while (parser.resolveAll()) ;
+                        if (parser.patched != null) {
+                            return;
+                        }
+                        parser.stats.resolverSteps += SymbolResolver.resolveAll(parser.components, parser.symbols, parser.currentLocation);
                     }
                 },
         RESOLVE_INSTRUCTIONS(RESOLVE_ALL) {
                     @Override
                     public void work(Parser parser) throws Exception {
+                        if (parser.patched != null) {
+                            return;
+                        }
                         InstructionComponent.resolveInstructions(parser.components, parser.symbols);
                     }
                 },
         RESOLVE_SYMBOLS(RESOLVE_INSTRUCTIONS) {
                     @Override
                     public void work(Parser parser) throws Exception {
-                        //noinspection StatementWithEmptyBody
-                        while (Symbol.resolveSymbols(parser.components, parser.symbols)) ;
-                    }
-                },
-        FIND_INSTRUCTIONS(RESOLVE_SYMBOLS) {
-                    @Override
-                    public void work(Parser parser) throws Exception {
-                        InstructionComponent.findInstructions(parser.components);
-                    }
-                },
-        FIND_BYTES(FIND_INSTRUCTIONS) {
-                    @Override
-                    public void work(Parser parser) throws Exception {
-                        Bytes.findBytes(parser.components);
+                        if (parser.patched != null) {
+                            return;
+                        }
+                        parser.stats.resolverSteps += SymbolResolver.resolveSymbols(parser.components, parser.symbols);
                     }
                 },
-        FIND_SYMBOLS(FIND_BYTES) {
+        LEXER(RESOLVE_SYMBOLS) {
                     @Override
                     public void work(Parser parser) throws Exception {
-                        Symbol.findSymbols(parser.components, parser.symbols);
+                        parser.patched = parser.cache == null ? null : parser.cache.update(parser);
+                        if (parser.patched == null) {
+                            parser.stats.lexedLines = Lexer.process(parser.components, parser.symbols, parser.cache);
+                            parser.stats.components = parser.components.size();
+                        } else {
+                            parser.stats.lexedLines = parser.patched.getChanged();
+                            parser.stats.components = parser.patched.getComponentCount();
+                            parser.stats.resolverSteps += parser.patched.getEvaluated();
+                        }
                     }
                 },
-        PREPROCESSOR(FIND_SYMBOLS) {
+        PREPROCESSOR(LEXER) {
                     @Override
                     public void work(Parser parser) throws Exception {
-                        Preprocessor.process(parser.components, parser.src, parser.includeFiles);
-                        StringBuilder stringBuilder = new StringBuilder();
-                        for (Component component : parser.components) {
-                            stringBuilder.append(((SrcComponent) component).contents).append('\n');
+                        Preprocessor.process(parser.components, parser.src, parser.includeFiles, parser.symbols, parser.session);
+                        if (parser.session.keepText) {
+                            StringBuilder stringBuilder = new StringBuilder();
+                            for (Component component : parser.components) {
+                                stringBuilder.append(((SrcComponent) component).contents).append('\n');
+                            }
+                            parser.postPre = stringBuilder.toString();
                         }
-                        parser.postPre = stringBuilder.toString();
                         parser.symbols.put("$", parser.currentLocation);
                     }
                 },
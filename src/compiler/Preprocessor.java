@@ -30,22 +30,18 @@
  */
 package compiler;
 
-import JavaEasembly.Main;
 import compiler.components.Component;
 import compiler.components.SrcComponent;
+import compiler.components.Symbol;
+import util.exceptions.CompileException;
 import util.exceptions.IncludeException;
 import util.exceptions.PreprocessorException;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static util.Constants.*;
 
@@ -56,191 +52,421 @@ import static util.Constants.*;
  */
 public class Preprocessor {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private Preprocessor() {
     }
 
-    public static void process(LinkedList<Component> components, String srcText, Map<String, String> includeFiles) throws PreprocessorException, IOException {
+    /**
+     * @param srcText     the source, or null to read session.srcFile
+     * @param symbolTable gets the symbols of precompiled headers
+     */
+    public static void process(LinkedList<Component> components, String srcText, Map<String, String> includeFiles, Map<String, Symbol> symbolTable, CompileSession session) throws CompileException, IOException {
         Matcher matcher;
-        String[] split = srcText.split("\\n");
-        for (int i = 0; i < split.length; i++) {
-            int comment = split[i].indexOf(PREFIX_COMMENT);
-            if (comment != -1) {
-                split[i] = split[i].substring(0, comment);
-            }
-            split[i] = split[i].trim();
-            if (!split[i].isEmpty()) {
-                components.add(new SrcComponent(i, split[i]));
-            }
+        if (srcText != null) {
+            SourceReader.read(srcText, components.listIterator());
+        } else {
+            SourceReader.read(session.srcFile, session.encoding, components.listIterator(), null);
         }
 
         HashMap<String, Macro> symbols = new HashMap<>();
         LinkedList<Boolean> ifList = new LinkedList<>();
+        LinkedList<File> includeStack = new LinkedList<>();
 
         ListIterator<Component> i = components.listIterator();
         while (i.hasNext()) {
-            String src = ((SrcComponent) i.next()).contents;
+            SrcComponent component = (SrcComponent) i.next();
+            i.remove();
+            if (component instanceof IncludeEnd) {
+                includeStack.removeLast();
+                continue;
+            }
+            final int line = component.getSrcLine();
+            String src = component.contents;
             if (src.isEmpty()) {
                 continue;
             }
             if (src.charAt(0) == PREFIX_PRECOMPILER) // Initial check is fast
             {
-                matcher = INCLUDE_A.matcher(src);
+                // Conditionals first, they have to be tracked in skipped parts too.
+                matcher = IFDEF.matcher(src);
                 if (matcher.matches()) {
-                    i.remove();
-                    include(i, new File(matcher.group(1)), includeFiles);
+                    ifList.add(symbols.containsKey(matcher.group(1)));
                     continue;
                 }
-                matcher = INCLUDE_R.matcher(src);
+                matcher = IFNDEF.matcher(src);
                 if (matcher.matches()) {
-                    i.remove();
-                    include(i, new File(Main.includeFile, matcher.group(1)), includeFiles);
+                    ifList.add(!symbols.containsKey(matcher.group(1)));
                     continue;
                 }
-            }
-        }
-        i = components.listIterator();
-        while (i.hasNext()) {
-            SrcComponent component = (SrcComponent) i.next();
-            i.remove();
-            final int line = component.getSrcLine();
-            String src = component.contents;
-            if (src.isEmpty()) {
-                continue;
-            }
-            if (src.charAt(0) == PREFIX_PRECOMPILER) // Initial check is fast
-            {
-                matcher = DEFINE.matcher(src);
+                matcher = ELSE.matcher(src);
                 if (matcher.matches()) {
-                    if (symbols.containsKey(matcher.group(1))) {
-                        throw new PreprocessorException(null, matcher.group(1) + " already defined.");
+                    if (ifList.isEmpty()) {
+                        throw new PreprocessorException(component, "#else without #ifdef or #ifndef.");
                     }
-                    symbols.put(matcher.group(1), new Macro(matcher, i));
+                    ifList.add(!ifList.removeLast());
                     continue;
                 }
-                matcher = UNDEFINE.matcher(src);
+                matcher = ENDIF.matcher(src);
                 if (matcher.matches()) {
-                    symbols.remove(matcher.group(1));
+                    if (ifList.isEmpty()) {
+                        throw new PreprocessorException(component, "#endif without #ifdef or #ifndef.");
+                    }
+                    ifList.removeLast();
                     continue;
                 }
-                matcher = IFDEF.matcher(src);
+                if (ifList.contains(Boolean.FALSE)) {
+                    continue;
+                }
+                matcher = INCLUDE_A.matcher(src);
                 if (matcher.matches()) {
-                    ifList.add(symbols.containsKey(matcher.group(1)));
+                    include(component, i, matcher.group(1), false, symbols, symbolTable, includeStack, includeFiles, session);
                     continue;
                 }
-                matcher = IFNDEF.matcher(src);
+                matcher = INCLUDE_R.matcher(src);
                 if (matcher.matches()) {
-                    ifList.add(!symbols.containsKey(matcher.group(1)));
+                    include(component, i, matcher.group(1), true, symbols, symbolTable, includeStack, includeFiles, session);
                     continue;
                 }
-                matcher = ELSE.matcher(src);
+                matcher = DEFINE.matcher(src);
                 if (matcher.matches()) {
-                    ifList.add(!ifList.removeLast());
+                    if (symbols.containsKey(matcher.group(1))) {
+                        throw new PreprocessorException(component, matcher.group(1) + " already defined.");
+                    }
+                    symbols.put(matcher.group(1), new Macro(matcher, i));
                     continue;
                 }
-                matcher = ENDIF.matcher(src);
+                matcher = UNDEFINE.matcher(src);
                 if (matcher.matches()) {
-                    ifList.removeLast();
+                    symbols.remove(matcher.group(1));
+                    continue;
+                }
+            } else if (ifList.contains(Boolean.FALSE)) {
+                continue;
+            }
+            if (!symbols.isEmpty()) {
+                StringBuilder expanded = new StringBuilder(src.length());
+                expand(component, src, symbols, new HashSet<Macro>(), expanded);
+                src = expanded.toString();
+            }
+            i.add(new SrcComponent(line, replaceAcsii(src)));
+        }
+        if (!ifList.isEmpty()) {
+            throw new PreprocessorException(null, "Missing #endif.");
+        }
+    }
+
+    /**
+     * Copies src to out, replacing every identifier that is a macro. Every line is scanned once, identifiers are looked
+     * up in the map, and only the text a macro produces is scanned again (with that macro disabled, so a macro that
+     * refers to itself ends instead of looping forever). Strings and chars are copied as they are.
+     */
+    private static void expand(Component component, String src, Map<String, Macro> macros, Set<Macro> active, StringBuilder out) throws PreprocessorException {
+        final int length = src.length();
+        int pos = 0;
+        while (pos < length) {
+            char c = src.charAt(pos);
+            if (c == '"' || c == '\'') {
+                int end = src.indexOf(c, pos + 1);
+                end = end == -1 ? length : end + 1;
+                out.append(src, pos, end);
+                pos = end;
+                continue;
+            }
+            if (!isWordChar(c)) {
+                out.append(c);
+                pos++;
+                continue;
+            }
+            int start = pos;
+            while (pos < length && isWordChar(src.charAt(pos))) {
+                pos++;
+            }
+            Macro macro = Character.isDigit(c) ? null : macros.get(src.substring(start, pos));
+            if (macro == null || active.contains(macro)) {
+                out.append(src, start, pos);
+                continue;
+            }
+            String replacement;
+            if (macro.args == null) {
+                replacement = macro.text;
+            } else {
+                int open = pos;
+                while (open < length && src.charAt(open) == ' ') {
+                    open++;
+                }
+                if (open == length || src.charAt(open) != '(') {
+                    out.append(src, start, pos); // Name only, not a call
                     continue;
                 }
+                ArrayList<String> values = new ArrayList<>(macro.args.length);
+                pos = splitArguments(component, macro, src, open + 1, values);
+                if (values.size() != macro.args.length) {
+                    throw new PreprocessorException(component, macro.name + " expects " + macro.args.length + " arguments, got " + values.size() + ".");
+                }
+                String[] expandedValues = new String[values.size()];
+                for (int j = 0; j < expandedValues.length; j++) {
+                    StringBuilder value = new StringBuilder();
+                    expand(component, values.get(j), macros, active, value);
+                    expandedValues[j] = value.toString();
+                }
+                replacement = macro.substitute(expandedValues);
+            }
+            active.add(macro);
+            expand(component, replacement, macros, active, out);
+            active.remove(macro);
+        }
+    }
+
+    /**
+     * @param pos just after the opening parenthesis
+     * @return the position just after the closing parenthesis
+     */
+    private static int splitArguments(Component component, Macro macro, String src, int pos, List<String> values) throws PreprocessorException {
+        final int length = src.length();
+        int depth = 0;
+        int start = pos;
+        while (pos < length) {
+            char c = src.charAt(pos);
+            if (c == '"' || c == '\'') {
+                int end = src.indexOf(c, pos + 1);
+                pos = end == -1 ? length : end + 1;
+                continue;
             }
-            boolean changes;
-            do {
-                changes = false;
-                for (String key : symbols.keySet()) {
-                    if (src.contains(key)) {
-                        String oldLine = src;
-                        src = symbols.get(key).acton(src);
-                        if (!oldLine.equals(src)) {
-                            changes = true;
-                        }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (depth == 0) {
+                    String last = src.substring(start, pos).trim();
+                    if (!last.isEmpty() || !values.isEmpty()) {
+                        values.add(last);
                     }
+                    return pos + 1;
                 }
-            } while (changes);
-            i.add(new SrcComponent(line, replaceAcsii(src)));
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                values.add(src.substring(start, pos).trim());
+                start = pos + 1;
+            }
+            pos++;
         }
+        throw new PreprocessorException(component, "Missing ) after arguments of " + macro.name + ".");
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
 
+    /**
+     * Replaces 'c' with its code and "text" with a list of codes (like 41h, 42h), in one pass over the line.
+     * Codes that start with a letter get a leading 0 so they aren't mistaken for a symbol.
+     */
     private static String replaceAcsii(String src) {
-        Matcher matcher;
-        while ((matcher = CHAR.matcher(src)).find()) {
-            src = matcher.replaceFirst(Integer.toHexString((int) matcher.group(1).charAt(0)) + "h");
+        final int length = src.length();
+        int pos = 0;
+        while (pos < length && src.charAt(pos) != '\'' && src.charAt(pos) != '"') {
+            pos++;
         }
-        while ((matcher = STRING.matcher(src)).find()) {
-            char[] chars = matcher.group(1).toCharArray();
-            StringBuilder stringBuilder = new StringBuilder();
-            for (int i = 0; i < chars.length; i++) {
-                stringBuilder.append(Integer.toHexString((int) chars[i])).append('h');
-                if (i + 1 < chars.length) {
-                    stringBuilder.append(", ");
+        if (pos == length) {
+            return src;
+        }
+        StringBuilder stringBuilder = new StringBuilder(length + 16).append(src, 0, pos);
+        while (pos < length) {
+            char c = src.charAt(pos);
+            if (c == '\'' && pos + 2 < length && src.charAt(pos + 2) == '\'') {
+                appendCode(stringBuilder, src.charAt(pos + 1));
+                pos += 3;
+            } else if (c == '"' && src.indexOf('"', pos + 1) != -1) {
+                int end = src.indexOf('"', pos + 1);
+                for (int i = pos + 1; i < end; i++) {
+                    if (i != pos + 1) {
+                        stringBuilder.append(", ");
+                    }
+                    appendCode(stringBuilder, src.charAt(i));
                 }
+                pos = end + 1;
+            } else {
+                stringBuilder.append(c);
+                pos++;
             }
-            src = matcher.replaceFirst(stringBuilder.toString());
         }
-        return src;
+        return stringBuilder.toString();
+    }
+
+    private static void appendCode(StringBuilder stringBuilder, char c) {
+        int shift = 12;
+        while (shift > 0 && (c >>> shift) == 0) {
+            shift -= 4;
+        }
+        if ((c >>> shift) > 9) {
+            stringBuilder.append('0');
+        }
+        for (; shift >= 0; shift -= 4) {
+            stringBuilder.append(HEX_DIGITS[(c >>> shift) & 0xF]);
+        }
+        stringBuilder.append('h');
     }
 
-    private static void include(ListIterator<Component> components, File file, Map<String, String> includeFiles) throws IncludeException, IOException {
-        String text = FileUtils.readFileToString(file, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)).replaceAll("\\r\\n", "\n");
-        includeFiles.put(FilenameUtils.getBaseName(file.getName()), text);
-        String split[] = text.split("\\n");
-        for (int i = 0; i < split.length; i++) {
-            int comment = split[i].indexOf(PREFIX_COMMENT);
-            if (comment != -1) {
-                split[i] = split[i].substring(0, comment);
+    /**
+     * Puts the lines of the file right after the cursor, so they are processed next. Files with an include guard that
+     * is already defined are skipped without looking at their lines, precompiled headers go straight into the symbol
+     * table. In memory includes never have a precompiled header.
+     */
+    private static void include(SrcComponent component, ListIterator<Component> components, String name, boolean system, Map<String, Macro> symbols, Map<String, Symbol> symbolTable, LinkedList<File> includeStack, Map<String, String> includeFiles, CompileSession session) throws CompileException, IOException {
+        File file;
+        IncludeCache.Entry entry;
+        if (session.memoryIncludes != null) {
+            String text = session.memoryIncludes.get(name);
+            if (text == null) {
+                throw new IncludeException(component, "Include file not found: " + name);
             }
-            split[i] = split[i].trim();
-            if (!split[i].isEmpty()) {
-                components.add(new SrcComponent(i, split[i]));
+            file = new File(name);
+            entry = session.includeCache.get(name, text);
+        } else {
+            file = session.resolveInclude(name, system);
+            if (!file.isFile()) {
+                throw new IncludeException(component, "Include file not found: " + file.getPath());
             }
+            entry = session.includeCache.get(file, session.encoding, session.keepText);
+        }
+        if (entry.guard != null && symbols.containsKey(entry.guard)) {
+            return;
+        }
+        SymbolHeader header = session.memoryIncludes == null ? loadHeader(entry.file, session) : null;
+        if (header != null && header.canUse(symbols)) {
+            header.addTo(symbolTable);
+            if (header.guard != null) {
+                symbols.put(header.guard, new Macro(header.guard));
+            }
+            includeFiles.put(FilenameUtils.getBaseName(file.getName()), entry.text);
+            return;
+        }
+        if (includeStack.contains(entry.file)) {
+            throw new IncludeException(component, "Recursive include of " + file.getPath());
+        }
+        includeFiles.put(FilenameUtils.getBaseName(file.getName()), entry.text);
+        includeStack.add(entry.file);
+        int lines = entry.addTo(components);
+        components.add(new IncludeEnd());
+        for (int j = 0; j <= lines; j++) {
+            components.previous();
+        }
+    }
+
+    /**
+     * @return the precompiled header, rebuilt first if the include changed since it was made. null if there is none.
+     */
+    private static SymbolHeader loadHeader(File file, CompileSession session) throws IOException {
+        if (!SymbolHeader.fileFor(file).exists()) {
+            return null;
+        }
+        SymbolHeader header = SymbolHeader.load(file, session.encoding);
+        if (header != null) {
+            return header;
+        }
+        try {
+            header = SymbolHeader.compile(file, session);
+            if (header != null) {
+                header.write(SymbolHeader.fileFor(file));
+            }
+            return header;
+        } catch (Exception e) {
+            return null; // Errors show up when it's included the normal way
+        }
+    }
+
+    /**
+     * Marks where an included file ends.
+     */
+    private static class IncludeEnd extends SrcComponent {
+
+        IncludeEnd() {
+            super(-1, "");
         }
     }
 
     /**
-     * Warning: Regex madness ahead.
+     * A #define, with the parameters in its text already located so a call is a single pass over the pieces.
      *
      * @author Dries007
      */
     public static class Macro {
 
-        private String name;
-        private String[] args;
-        private String text;
-        private Pattern pattern;
+        private final String name;
+        private final String[] args;
+        private final String text;
+        /**
+         * The text split around parameters: Strings are copied, Integers are the index of the argument to insert.
+         */
+        private final Object[] pieces;
+
+        /**
+         * A macro without a value, like an include guard.
+         */
+        public Macro(String name) {
+            this.name = name;
+            this.args = null;
+            this.text = "";
+            this.pieces = null;
+        }
 
         public Macro(Matcher matcher, ListIterator<Component> iterator) {
             name = matcher.group(1);
-            args = matcher.group(2) != null ? matcher.group(2).split(", ?") : null;
-            text = matcher.group(3);
-            while (text.charAt(text.length() - 1) == '\\') {
-                text = text.substring(0, text.length() - 1) + " " + iterator.next();
-            }
-            if (args != null) {
-                StringBuilder patternBuilder = new StringBuilder();
-                patternBuilder.append(name).append("\\(");
-                for (int i = 0; i < args.length; i++) {
-                    patternBuilder.append("([^,]+?)");
-                    if (i != args.length - 1) {
-                        patternBuilder.append(", ?");
-                    }
+            String params = matcher.group(2) == null ? null : matcher.group(2).trim();
+            args = params == null ? null : params.isEmpty() ? new String[0] : params.split("\\s*,\\s*"); // F() takes no arguments
+            String text = matcher.group(3) == null ? "" : matcher.group(3);
+            while (!text.isEmpty() && text.charAt(text.length() - 1) == '\\' && iterator.hasNext()) {
+                Component next = iterator.next();
+                if (next instanceof IncludeEnd) { // Continuation doesn't go past the end of a file
+                    iterator.previous();
+                    break;
                 }
-                patternBuilder.append("\\)");
-                pattern = Pattern.compile(patternBuilder.toString());
+                text = text.substring(0, text.length() - 1) + " " + ((SrcComponent) next).contents;
+                iterator.remove();
             }
+            this.text = text;
+            this.pieces = args == null ? null : split(text, args);
         }
 
-        public String acton(String line) {
-            if (args == null) {
-                return line.replace(name, text);
+        private static Object[] split(String text, String[] args) {
+            HashMap<String, Integer> indexes = new HashMap<>();
+            for (int i = 0; i < args.length; i++) {
+                indexes.put(args[i], i);
             }
-            Matcher matcher = pattern.matcher(line);
-            if (!matcher.find()) {
-                return line;
+            ArrayList<Object> pieces = new ArrayList<>();
+            final int length = text.length();
+            int pos = 0;
+            int literal = 0;
+            while (pos < length) {
+                if (!isWordChar(text.charAt(pos))) {
+                    pos++;
+                    continue;
+                }
+                int start = pos;
+                while (pos < length && isWordChar(text.charAt(pos))) {
+                    pos++;
+                }
+                Integer index = indexes.get(text.substring(start, pos));
+                if (index != null) {
+                    if (literal != start) {
+                        pieces.add(text.substring(literal, start));
+                    }
+                    pieces.add(index);
+                    literal = pos;
+                }
             }
-            String replacement = text;
-            for (int i = 0; i < args.length; i++) {
-                replacement = replacement.replace(args[i], matcher.group(i + 1));
+            if (literal != length) {
+                pieces.add(text.substring(literal));
+            }
+            return pieces.toArray();
+        }
+
+        public String substitute(String[] values) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (Object piece : pieces) {
+                stringBuilder.append(piece instanceof Integer ? values[(Integer) piece] : (String) piece);
             }
-            return matcher.replaceFirst(replacement);
+            return stringBuilder.toString();
         }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import util.exceptions.HexFormatException;
+
+import java.nio.ByteBuffer;
+
+import static compiler.HexWriter.DIGITS;
+import static compiler.HexWriter.NEWLINE;
+
+/**
+ * Motorola S-records, for programmers that don't take Intel HEX: an S0 header, S1 data records with 16 bit addresses
+ * and an S9 end record. Written and read the same way as {@link HexWriter} and {@link HexReader} do it.
+ *
+ * @author Dries007
+ */
+public class SRecord {
+
+    /**
+     * Data bytes per record.
+     */
+    public static final int RECORD_SIZE = 0x20;
+    /**
+     * 'S', type, count, address and checksum, with a 16 bit address
+     */
+    private static final int RECORD_OVERHEAD = 10;
+
+    private SRecord() {
+    }
+
+    /**
+     * @return the used parts of the image as a complete S-record file
+     */
+    public static byte[] toBytes(MemoryImage image) {
+        int size = 2 * recordSize(0);
+        for (int start = image.nextUsed(0); start != -1; start = image.nextUsed(image.nextUnused(start))) {
+            int length = image.nextUnused(start) - start;
+            size += length / RECORD_SIZE * recordSize(RECORD_SIZE) + (length % RECORD_SIZE == 0 ? 0 : recordSize(length % RECORD_SIZE));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        record(buffer, '0', 0, image.data, 0, 0);
+        for (int start = image.nextUsed(0); start != -1; start = image.nextUsed(image.nextUnused(start))) {
+            int end = image.nextUnused(start);
+            for (int address = start; address < end; address += RECORD_SIZE) {
+                record(buffer, '1', address, image.data, address, Math.min(RECORD_SIZE, end - address));
+            }
+        }
+        record(buffer, '9', 0, image.data, 0, 0);
+        return buffer.array();
+    }
+
+    /**
+     * Reads S1, S2 and S3 data records into a 64K image, the other records are only checked.
+     */
+    public static MemoryImage readImage(ByteBuffer in) throws HexFormatException {
+        MemoryImage image = new MemoryImage();
+        int line = 1;
+        while (in.hasRemaining()) {
+            byte c = in.get();
+            if (c == '\n') {
+                line++;
+                continue;
+            }
+            if (c != 'S' || !in.hasRemaining()) {
+                line += skipLine(in);
+                continue;
+            }
+            int type = in.get() - '0';
+            int count = readByte(in, line);
+            int sum = count;
+            int addressBytes = type == 2 || type == 8 ? 3 : type == 3 || type == 7 ? 4 : 2;
+            if (type < 0 || type > 9 || type == 4 || count < addressBytes + 1) {
+                throw new HexFormatException(line, "Not a valid S-record.");
+            }
+            int address = 0;
+            for (int i = 0; i < addressBytes; i++) {
+                int b = readByte(in, line);
+                address = address << 8 | b;
+                sum += b;
+            }
+            int length = count - addressBytes - 1;
+            boolean data = type >= 1 && type <= 3;
+            if (data && (address < 0 || address + length > MemoryImage.SIZE)) {
+                throw new HexFormatException(line, String.format("Address 0x%X is outside of the 64K code space.", address));
+            }
+            for (int i = 0; i < length; i++) {
+                int b = readByte(in, line);
+                if (data) {
+                    image.set(address + i, b);
+                }
+                sum += b;
+            }
+            if (((sum + readByte(in, line)) & 0xFF) != 0xFF) {
+                throw new HexFormatException(line, "Checksum error.");
+            }
+            if (type >= 7) {
+                break;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return the number of bytes a 16 bit address record with this many data bytes takes
+     */
+    public static int recordSize(int length) {
+        return RECORD_OVERHEAD + 2 * length + NEWLINE.length;
+    }
+
+    private static void record(ByteBuffer buffer, char type, int address, byte[] data, int offset, int length) {
+        int count = length + 3;
+        int sum = count + (address >>> 8) + address;
+        buffer.put((byte) 'S');
+        buffer.put((byte) type);
+        putByte(buffer, count);
+        putByte(buffer, address >>> 8);
+        putByte(buffer, address);
+        for (int i = offset; i < offset + length; i++) {
+            sum += data[i];
+            putByte(buffer, data[i]);
+        }
+        putByte(buffer, ~sum);
+        buffer.put(NEWLINE);
+    }
+
+    private static void putByte(ByteBuffer buffer, int b) {
+        buffer.put(DIGITS[(b >>> 4) & 0xF]);
+        buffer.put(DIGITS[b & 0xF]);
+    }
+
+    private static int readByte(ByteBuffer in, int line) throws HexFormatException {
+        if (in.remaining() < 2) {
+            throw new HexFormatException(line, "Record is cut short.");
+        }
+        byte high = in.get();
+        byte low = in.get();
+        int value = high < 0 || low < 0 ? -1 : HexReader.NIBBLES[high] << 4 | HexReader.NIBBLES[low];
+        if (value < 0) {
+            throw new HexFormatException(line, "Not a hex digit: " + (char) (high & 0xFF) + (char) (low & 0xFF));
+        }
+        return value;
+    }
+
+    /**
+     * @return 1 if a newline was skipped
+     */
+    private static int skipLine(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (in.get() == '\n') {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -29,72 +29,98 @@
  *
  */
 
+
 package compiler;
 
 import compiler.components.Component;
 import util.exceptions.CompileException;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.LinkedList;
 
 /**
+ * One ORG block. The bytes themselves live in the MemoryImage all sections of a compile share.
+ *
  * @author Dries007
  */
 public class Section
 {
-    private final ArrayList<Integer> hexList = new ArrayList<>();
+    private final MemoryImage image;
+    private int size;
     public final Integer startaddress;
 
-    public Section(Integer startaddress)
+    public Section(MemoryImage image, Integer startaddress)
     {
+        this.image = image;
         this.startaddress = startaddress;
     }
 
-    public void addToHexFile(LinkedList<String> lines) throws CompileException
+    /**
+     * The same section in another image, that already holds its bytes.
+     */
+    Section(MemoryImage image, Section section)
     {
-        for (int i = 0; i <= hexList.size() / 0x20; i++)
-        {
-            final int length = Math.min(0x20, hexList.size() - 0x20 * i);
-            final int address = (0x20 * i);
-            int sum = length + (address & 0xFF) + (address >>> 8);
-            StringBuilder line = new StringBuilder(75); // 75 = normal line length
-            line.append(String.format(":%02X%04X00", length, startaddress + address));
-            for (int j = 0; j < length; j++)
-            {
-                if (hexList.get(address + j) > 0xFF) throw new CompileException("One byte can't be more then 0xFF.");
-                sum += hexList.get(address + j);
-                line.append(String.format("%02X", hexList.get(address + j)));
-            }
-            line.append(String.format("%02X", ((~sum) + 1) & 0xFF));
-            lines.add(line.toString());
-        }
+        this.image = image;
+        this.startaddress = section.startaddress;
+        this.size = section.size;
+    }
+
+    public void addToHexFile(HexWriter writer) throws IOException
+    {
+        writer.data(startaddress, image.data, startaddress, size);
     }
 
-    public void addData(Component component)
+    /**
+     * @return the number of bytes addToHexFile writes
+     */
+    public int getHexSize()
     {
-        for (int b : component.getData()) hexList.add(b);
+        int full = size / HexWriter.RECORD_SIZE;
+        int rest = size % HexWriter.RECORD_SIZE;
+        return full * HexWriter.recordSize(HexWriter.RECORD_SIZE) + (rest == 0 ? 0 : HexWriter.recordSize(rest));
+    }
+
+    public void addData(Component component) throws CompileException
+    {
+        for (int b : component.getData())
+        {
+            if (b > 0xFF) throw new CompileException(component, "One byte can't be more then 0xFF.");
+            int address = startaddress + size;
+            if (address >= MemoryImage.SIZE) throw new CompileException(component, "Code doesn't fit in 64K.");
+            if (!image.put(address, b)) throw new CompileException(component, String.format("Section overlap at 0x%04X!", address));
+            size++;
+        }
     }
 
     public void addToHexTable(LinkedList<String[]> data)
     {
         int offset = startaddress / 16;
         int global = 0;
-        for (int i = 0; i <= hexList.size() / 16; i++)
+        for (int i = 0; i <= size / 16; i++)
         {
             String[] line = new String[17];
             line[0] = String.format("0x%02X - 0x%2X", offset + i, offset + i + 16);
             for (int j = 0; j < 16; j++)
             {
                 if (i == 0 && j < startaddress % 16) continue;
-                if (hexList.size() == global) break;
-                line[1 + j] = String.format("%02X", hexList.get(global++));
+                if (size == global) break;
+                line[1 + j] = String.format("%02X", image.get(startaddress + global++));
             }
             data.add(line);
         }
     }
 
+    /**
+     * @return the byte at offset index from the start of this section
+     */
+    public int get(int index)
+    {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+        return image.get(startaddress + index);
+    }
+
     public int getSize()
     {
-        return hexList.size();
+        return size;
     }
 }
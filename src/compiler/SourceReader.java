@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.Component;
+import compiler.components.SrcComponent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.ListIterator;
+
+import static util.Constants.PREFIX_COMMENT;
+
+/**
+ * Turns source text into SrcComponents in one pass: line endings (\n, \r\n or \r) are split on, comments are dropped,
+ * lines are trimmed and empty lines skipped. Files are decoded in fixed size chunks, so the whole file is never in
+ * memory as a String.
+ *
+ * @author Dries007
+ */
+public class SourceReader {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private final ListIterator<Component> out;
+    private final StringBuilder copy;
+    private final StringBuilder line = new StringBuilder(128);
+    private int srcLine;
+    private boolean comment;
+    private boolean afterCR;
+
+    /**
+     * @param out  where the lines are added
+     * @param copy if not null, gets the text with normalized line endings
+     */
+    private SourceReader(ListIterator<Component> out, StringBuilder copy) {
+        this.out = out;
+        this.copy = copy;
+    }
+
+    public static void read(CharSequence text, ListIterator<Component> out) {
+        SourceReader reader = new SourceReader(out, null);
+        reader.feed(text);
+        reader.finish();
+    }
+
+    /**
+     * @param encoding null means the platform default
+     * @param copy     if not null, gets the text with normalized line endings
+     */
+    public static void read(File file, String encoding, ListIterator<Component> out, StringBuilder copy) throws IOException {
+        SourceReader reader = new SourceReader(out, copy);
+        CharsetDecoder decoder = (encoding == null ? Charset.defaultCharset() : Charset.forName(encoding)).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(bytes) == -1;
+                bytes.flip();
+                decoder.decode(bytes, chars, eof);
+                chars.flip();
+                reader.feed(chars);
+                chars.clear();
+                bytes.compact();
+            }
+            while (decoder.flush(chars).isOverflow()) {
+                chars.flip();
+                reader.feed(chars);
+                chars.clear();
+            }
+            chars.flip();
+            reader.feed(chars);
+        }
+        reader.finish();
+    }
+
+    private void feed(CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n' && afterCR) { // Second half of \r\n
+                afterCR = false;
+                continue;
+            }
+            afterCR = c == '\r';
+            if (c == '\n' || c == '\r') {
+                endLine();
+                continue;
+            }
+            if (copy != null) {
+                copy.append(c);
+            }
+            if (c == PREFIX_COMMENT) {
+                comment = true;
+            }
+            if (!comment && (c > ' ' || line.length() != 0)) { // Leading whitespace is trimmed here
+                line.append(c);
+            }
+        }
+    }
+
+    private void endLine() {
+        if (copy != null) {
+            copy.append('\n');
+        }
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end != 0) {
+            out.add(new SrcComponent(srcLine, line.substring(0, end)));
+        }
+        line.setLength(0);
+        comment = false;
+        srcLine++;
+    }
+
+    private void finish() {
+        if (line.length() != 0) {
+            endLine();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.Symbol;
+import util.exceptions.SymbolAlreadyDefinedException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A precompiled include file: the resolved EQU/DATA/BIT symbols of a header (like the SFR definitions) in a small
+ * binary file next to it (name.inc.sym). When it exists and still matches the header's size, modification time and
+ * encoding, an #include puts the symbols straight into the symbol table instead of preprocessing, lexing and
+ * evaluating the header again. A header that changed gets its .sym file rebuilt on the next include.
+ * Only headers that are nothing but symbol definitions (and an include guard) can be precompiled.
+ *
+ * @author Dries007
+ */
+public class SymbolHeader {
+
+    public static final String EXTENSION = ".sym";
+    private static final int MAGIC = 0x4A385348; // J8SH
+    private static final int VERSION = 1;
+    private static final Symbol.Type[] TYPES = Symbol.Type.values();
+
+    /**
+     * The include guard macro, or null.
+     */
+    public final String guard;
+    private final long sourceLength;
+    private final long sourceLastModified;
+    private final String encoding;
+    private final int[] srcLines;
+    private final Symbol.Type[] types;
+    private final String[] keys;
+    private final int[] values;
+    private final String[] expressions;
+
+    private SymbolHeader(String guard, long sourceLength, long sourceLastModified, String encoding, int size) {
+        this.guard = guard;
+        this.sourceLength = sourceLength;
+        this.sourceLastModified = sourceLastModified;
+        this.encoding = encoding;
+        this.srcLines = new int[size];
+        this.types = new Symbol.Type[size];
+        this.keys = new String[size];
+        this.values = new int[size];
+        this.expressions = new String[size];
+    }
+
+    public static File fileFor(File include) {
+        return new File(include.getPath() + EXTENSION);
+    }
+
+    /**
+     * @return the precompiled header of the include, or null if there is none or it's out of date
+     */
+    public static SymbolHeader load(File include, String encoding) throws IOException {
+        File file = fileFor(include);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long sourceLength = in.readLong();
+            long sourceLastModified = in.readLong();
+            String headerEncoding = readNullable(in);
+            if (sourceLength != include.length() || sourceLastModified != include.lastModified() || !(encoding == null ? headerEncoding == null : encoding.equals(headerEncoding))) {
+                return null;
+            }
+            String guard = readNullable(in);
+            SymbolHeader header = new SymbolHeader(guard, sourceLength, sourceLastModified, headerEncoding, in.readInt());
+            for (int i = 0; i < header.keys.length; i++) {
+                header.types[i] = TYPES[in.readUnsignedByte()];
+                header.srcLines[i] = in.readInt();
+                header.keys[i] = in.readUTF();
+                header.values[i] = in.readInt();
+                header.expressions[i] = in.readUTF();
+            }
+            return header;
+        } catch (EOFException | ArrayIndexOutOfBoundsException e) {
+            return null; // Damaged, treat as out of date
+        }
+    }
+
+    /**
+     * Preprocesses, lexes and resolves the include on its own.
+     *
+     * @return null if the include isn't only symbol definitions that resolve by themselves
+     */
+    public static SymbolHeader compile(File include, CompileSession session) throws Exception {
+        IncludeCache.Entry entry = session.includeCache.get(include, session.encoding, false);
+        if (!entry.onlyGuardDirectives()) {
+            return null;
+        }
+        long length = include.length();
+        long lastModified = include.lastModified();
+        CompileSession headerSession = new CompileSession(include, session.includePaths, session.encoding, null, false, session.includeCache);
+        Parser parser = new Parser(headerSession, null);
+        while (parser.getStage() != Parser.Stage.RESOLVE_SYMBOLS) {
+            parser.doWork();
+        }
+        if (!parser.components.isEmpty()) {
+            return null; // Code, ORG, labels or symbols that need addresses
+        }
+        ArrayList<Symbol> symbols = new ArrayList<>(parser.symbols.values());
+        symbols.remove(parser.currentLocation);
+        Collections.sort(symbols, (a, b) -> Integer.compare(a.getSrcLine(), b.getSrcLine()));
+        SymbolHeader header = new SymbolHeader(entry.guard, length, lastModified, session.encoding, symbols.size());
+        for (int i = 0; i < symbols.size(); i++) {
+            Symbol symbol = symbols.get(i);
+            if (!symbol.isDefined()) {
+                return null;
+            }
+            header.srcLines[i] = symbol.getSrcLine();
+            header.types[i] = symbol.type;
+            header.keys[i] = symbol.key;
+            header.values[i] = symbol.intValue;
+            header.expressions[i] = symbol.stringValue == null ? "" : symbol.stringValue;
+        }
+        return header;
+    }
+
+    /**
+     * Makes the .sym file for an include.
+     *
+     * @return false if the include can't be precompiled
+     */
+    public static boolean precompile(File include, CompileSession session) throws Exception {
+        SymbolHeader header = compile(include, session);
+        if (header == null) {
+            return false;
+        }
+        header.write(fileFor(include));
+        return true;
+    }
+
+    /**
+     * Writes a temporary file in the same folder and moves it over the old one, so a compile that loads the header
+     * while another one rebuilds it (parallel batch or daemon compiles sharing an include) never reads half a file.
+     */
+    public void write(File file) throws IOException {
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(file.getName() + '.' + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            write(temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE_NEW)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceLastModified);
+            writeNullable(out, encoding);
+            writeNullable(out, guard);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                out.writeByte(types[i].ordinal());
+                out.writeInt(srcLines[i]);
+                out.writeUTF(keys[i]);
+                out.writeInt(values[i]);
+                out.writeUTF(expressions[i]);
+            }
+        }
+    }
+
+    /**
+     * @return false if one of the macros would change the header's text, then it has to be included the normal way
+     */
+    public boolean canUse(Map<String, ?> macros) {
+        if (macros.isEmpty()) {
+            return true;
+        }
+        for (String name : macros.keySet()) {
+            if (name.equalsIgnoreCase("EQU") || name.equalsIgnoreCase("DATA") || name.equalsIgnoreCase("BIT")) {
+                return false; // The header can spell them any way, the lexer doesn't care
+            }
+        }
+        for (String key : keys) {
+            if (macros.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds new, resolved symbols to the table.
+     */
+    public void addTo(Map<String, Symbol> symbols) throws SymbolAlreadyDefinedException {
+        for (int i = 0; i < keys.length; i++) {
+            Symbol symbol = new Symbol(srcLines[i], types[i], keys[i]);
+            symbol.intValue = values[i];
+            symbol.stringValue = expressions[i];
+            symbol.setResolved(true);
+            String key = keys[i].toLowerCase();
+            if (symbols.containsKey(key)) {
+                throw new SymbolAlreadyDefinedException(symbol, symbol.toString());
+            }
+            symbols.put(key, symbol);
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package compiler;
+
+import compiler.components.*;
+import util.CompiledExpression;
+import util.exceptions.CircularDefinitionException;
+import util.exceptions.CompileException;
+import util.exceptions.SymbolUndefinedException;
+
+import java.util.*;
+
+/**
+ * Resolves EQU/DATA/BIT/ORG values in dependency order instead of re-walking the component list until nothing changes.
+ * Every pending symbol records the pending symbols its expression refers to, and is evaluated once all of those are done.
+ * Symbols that still depend on labels stay in the component list and are retried once the addresses are known.
+ *
+ * @author Dries007
+ */
+public class SymbolResolver {
+
+    private SymbolResolver() {
+    }
+
+    /**
+     * Evaluate every symbol that has its expression (a SrcComponent) right after it in the list.
+     * Resolved expressions are removed, as are EQU/DATA/BIT symbols themselves.
+     *
+     * @return the number of symbols that were evaluated
+     * @throws CircularDefinitionException if symbols (indirectly) depend on themselves
+     */
+    public static int resolveSymbols(LinkedList<Component> components, Map<String, Symbol> symbols) throws CompileException {
+        LinkedList<Node> nodes = new LinkedList<>();
+        HashMap<String, Node> pending = new HashMap<>();
+        Component prev = null;
+        for (Component current : components) {
+            if (prev instanceof Symbol && current instanceof SrcComponent && !((Symbol) prev).isDefined() && ((Symbol) prev).type.evaluate) {
+                Node node = new Node((Symbol) prev, (SrcComponent) current);
+                nodes.add(node);
+                if (node.symbol.key != null) {
+                    pending.put(node.symbol.key.toLowerCase(), node);
+                }
+            }
+            prev = current;
+        }
+        if (nodes.isEmpty()) {
+            return 0;
+        }
+
+        LinkedList<Node> worklist = new LinkedList<>();
+        for (Node node : nodes) {
+            for (String reference : references(node.src.contents)) {
+                Node dependency = pending.get(reference);
+                if (dependency != null && dependency.dependents.add(node)) {
+                    node.waitingFor++;
+                }
+            }
+            if (node.waitingFor == 0) {
+                worklist.add(node);
+            }
+        }
+
+        int done = 0;
+        while (!worklist.isEmpty()) {
+            Node node = worklist.removeFirst();
+            done++;
+            CompiledExpression expression = node.symbol.type.evaluator.compile(node.src.contents, symbols);
+            long result = expression.tryEvaluate(symbols);
+            switch (CompiledExpression.status(result)) {
+                case CompiledExpression.DEFINED:
+                    node.symbol.intValue = CompiledExpression.value(result);
+                    node.symbol.stringValue = node.src.contents;
+                    node.resolved = true;
+                    break;
+                case CompiledExpression.UNKNOWN:
+                    throw new CompileException(node.symbol, "Unknown symbol: " + expression.getName(CompiledExpression.value(result)));
+                // UNDEFINED: Depends on a label, retried after the addresses are known.
+            }
+            for (Node dependent : node.dependents) {
+                if (--dependent.waitingFor == 0) {
+                    worklist.add(dependent);
+                }
+            }
+        }
+        if (done != nodes.size()) {
+            throw circular(nodes, pending);
+        }
+
+        ListIterator<Component> i = components.listIterator();
+        Iterator<Node> next = nodes.iterator();
+        Node node = next.next();
+        while (node != null && i.hasNext()) {
+            if (i.next() != node.symbol) {
+                continue;
+            }
+            if (node.resolved) {
+                if (node.symbol.type.removeFromSrc) {
+                    i.remove();
+                }
+                i.next();
+                i.remove();
+            }
+            node = next.hasNext() ? next.next() : null;
+        }
+        return done;
+    }
+
+    /**
+     * Lay out all components (label values, addresses) in one pass, finish the symbols that depended on labels and
+     * then resolve every component exactly once.
+     *
+     * @return the number of symbols that were evaluated
+     */
+    public static int resolveAll(LinkedList<Component> components, HashMap<String, Symbol> symbols, Symbol currentLocation) throws CompileException {
+        currentLocation.intValue = 0;
+        ListIterator<Component> i = components.listIterator();
+        while (i.hasNext()) {
+            Component component = i.next();
+            if (component instanceof Symbol && ((Symbol) component).type == Symbol.Type.ORG) {
+                if (!((Symbol) component).isDefined()) {
+                    throw new CompileException(component, "ORG address can't be resolved.");
+                }
+                currentLocation.intValue = ((Symbol) component).intValue;
+            }
+            component.address = currentLocation.intValue;
+            if (component instanceof InstructionComponent && ((InstructionComponent) component).instruction == null) {
+                component.tryResolve(currentLocation.intValue, symbols); // Throws the unresolved instruction error
+            }
+            if (component instanceof Symbol && ((Symbol) component).type == Symbol.Type.LABEL) {
+                component.tryResolve(currentLocation.intValue, symbols);
+                component.setResolved(true);
+                i.remove();
+            } else if (!(component instanceof SrcComponent)) {
+                try {
+                    currentLocation.intValue += component.getSize(symbols);
+                } catch (SymbolUndefinedException e) {
+                    throw new CompileException(component, "Size depends on undefined symbol " + e.getMessage(), e);
+                }
+            }
+        }
+        currentLocation.intValue = null;
+
+        int steps = resolveSymbols(components, symbols);
+
+        for (Component component : components) {
+            if (component instanceof SrcComponent) {
+                throw new CompileException(component, "Unsolved src: " + ((SrcComponent) component).contents);
+            }
+            if (!component.isResolved()) {
+                currentLocation.intValue = component.address;
+                try {
+                    component.tryResolve(component.address, symbols);
+                    component.setResolved(true);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new CompileException(component, "", e);
+                } catch (SymbolUndefinedException e) {
+                    throw new CompileException(component, "Undefined symbol " + e.getMessage(), e);
+                }
+            }
+        }
+        currentLocation.intValue = null;
+        return steps;
+    }
+
+    /**
+     * @return the lowercase identifiers used in an expression. Numbers (starting with a digit) are skipped.
+     */
+    static List<String> references(String expression) {
+        ArrayList<String> references = new ArrayList<>(2);
+        final int length = expression.length();
+        int pos = 0;
+        while (pos < length) {
+            char c = expression.charAt(pos);
+            if (isWordChar(c)) {
+                int start = pos;
+                while (pos < length && isWordChar(expression.charAt(pos))) {
+                    pos++;
+                }
+                if (!Character.isDigit(c)) {
+                    references.add(expression.substring(start, pos).toLowerCase());
+                }
+            } else {
+                pos++;
+            }
+        }
+        return references;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static CircularDefinitionException circular(List<Node> nodes, Map<String, Node> pending) {
+        Node start = null;
+        for (Node node : nodes) {
+            if (node.waitingFor != 0) {
+                start = node;
+                break;
+            }
+        }
+        // Walk along unfinished dependencies until a node repeats, that's the cycle.
+        LinkedHashSet<Node> path = new LinkedHashSet<>();
+        Node node = start;
+        while (node != null && path.add(node)) {
+            Node next = null;
+            for (String reference : references(node.src.contents)) {
+                Node dependency = pending.get(reference);
+                if (dependency != null && dependency.waitingFor != 0) {
+                    next = dependency;
+                    break;
+                }
+            }
+            node = next;
+        }
+        StringBuilder cycle = new StringBuilder();
+        boolean inCycle = false;
+        for (Node n : path) {
+            if (n == node) {
+                inCycle = true;
+            }
+            if (inCycle) {
+                cycle.append(n.symbol.key).append(" -> ");
+            }
+        }
+        cycle.append(node == null ? "?" : node.symbol.key);
+        return new CircularDefinitionException(node == null ? start.symbol : node.symbol, "Circular definition: " + cycle);
+    }
+
+    private static class Node {
+
+        final Symbol symbol;
+        final SrcComponent src;
+        final LinkedHashSet<Node> dependents = new LinkedHashSet<>();
+        int waitingFor;
+        boolean resolved;
+
+        Node(Symbol symbol, SrcComponent src) {
+            this.symbol = symbol;
+            this.src = src;
+        }
+    }
+}
@@ -31,13 +31,10 @@
 
 package compiler.components;
 
-import util.Constants;
 import util.IntegerEvaluator;
 import util.exceptions.SymbolUndefinedException;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Dries007
@@ -48,41 +45,17 @@ public class Bytes extends Component
     public final Object[] objects;
     private int size = -1;
 
-    private Bytes(int srcLine, Matcher matcher, Type type)
+    public Bytes(int srcLine, Type type, String operands)
     {
         super(srcLine);
         this.type = type;
-        if (type == Type.DS) this.objects = new String[]{matcher.group(1), matcher.group(2)};
-        else this.objects = matcher.group(1).split(",\\s*");
-    }
-
-    public static void findBytes(List<Component> components)
-    {
-        for (Type type : Type.values())
+        if (type == Type.DS)
         {
-            ListIterator<Component> i = components.listIterator(components.size());
-            while (i.hasPrevious())
-            {
-                Component component = i.previous();
-                if (component instanceof SrcComponent)
-                {
-                    String src = ((SrcComponent) component).contents;
-
-                    Matcher matcher = type.pattern.matcher(src);
-                    if (!matcher.find()) continue;
-                    i.remove();
-
-                    SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
-                    if (pre.shouldAdd()) i.add(pre);
-
-                    Bytes bytes = new Bytes(pre.getSrcLine(), matcher, type);
-                    i.add(bytes);
-
-                    SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
-                    if (post.shouldAdd()) i.add(post);
-                }
-            }
+            int shift = operands.indexOf("<<");
+            if (shift == -1) this.objects = new String[]{operands, null};
+            else this.objects = new String[]{operands.substring(0, shift).trim(), operands.substring(shift + 2).trim()};
         }
+        else this.objects = operands.split(",\\s*");
     }
 
     @Override
@@ -145,15 +118,8 @@ public class Bytes extends Component
         }
     }
 
-    private static enum Type
+    public static enum Type
     {
-        DB(Constants.DB), DW(Constants.DW), DS(Constants.DS);
-
-        public final Pattern pattern;
-
-        Type(Pattern pattern)
-        {
-            this.pattern = pattern;
-        }
+        DB, DW, DS
     }
 }
@@ -31,13 +31,12 @@
 package compiler.components;
 
 import compiler.Instruction;
+import util.CompiledExpression;
 import util.exceptions.AddressOutOfRandException;
 import util.exceptions.CompileException;
 import util.exceptions.SymbolUndefinedException;
-import util.exceptions.SymbolUnknownException;
 
 import java.util.*;
-import java.util.regex.Matcher;
 
 /**
  * @author Dries007
@@ -48,7 +47,7 @@ public class InstructionComponent extends Component {
     public Instruction instruction;
     private Object[] objects;
 
-    private InstructionComponent(int srcLine, Matcher matcher, Instruction.Type type) {
+    public InstructionComponent(int srcLine, Instruction.Type type) {
         super(srcLine);
         this.type = type;
         if (Instruction.SIMPLE_INSTRUCTIONS.containsKey(type)) {
@@ -69,47 +68,19 @@ public class InstructionComponent extends Component {
                 SrcComponent srcComponent = (SrcComponent) current;
                 String[] arguments = srcComponent.contents.split(",\\s*");
                 if (instructionComponent.instruction == null) {
-                    List<Instruction> instructions = instructionComponent.type.getInstructions();
-                    for (Instruction instruction : instructions) {
-                        if (instructionComponent.matches(symbols, instruction, arguments)) {
-                            i.remove();
-                            break;
-                        }
-                    }
-                }
-            }
-            prev = current;
-        }
-    }
-
-    public static void findInstructions(List<Component> components) {
-        for (Instruction.Type type : Instruction.Type.values()) {
-            ListIterator<Component> i = components.listIterator(components.size());
-            while (i.hasPrevious()) {
-                Component component = i.previous();
-                if (component instanceof SrcComponent) {
-                    String src = ((SrcComponent) component).contents;
-
-                    Matcher matcher = type.pattern.matcher(src);
-                    if (!matcher.find()) {
-                        continue;
-                    }
-                    i.remove();
-
-                    SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
-                    if (pre.shouldAdd()) {
-                        i.add(pre);
+                    for (int j = 0; j < arguments.length; j++) {
+                        arguments[j] = arguments[j].trim();
                     }
-
-                    InstructionComponent instructionComponent = new InstructionComponent(pre.getSrcLine(), matcher, type);
-                    i.add(instructionComponent);
-
-                    SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
-                    if (post.shouldAdd()) {
-                        i.add(post);
+                    Instruction instruction = Instruction.lookup(instructionComponent.type, arguments);
+                    if (instruction != null) {
+                        instructionComponent.match(symbols, instruction, arguments);
+                        i.remove();
+                    } else {
+                        instructionComponent.objects = arguments;
                     }
                 }
             }
+            prev = current;
         }
     }
 
@@ -179,38 +150,32 @@ public class InstructionComponent extends Component {
         }
     }
 
-    private boolean matches(HashMap<String, Symbol> symbols, Instruction instruction, String[] args) throws CompileException {
-        if (instruction.arguments.length != args.length) {
-            return false;
-        }
+    private void match(HashMap<String, Symbol> symbols, Instruction instruction, String[] args) throws CompileException {
         Object[] data = new Object[args.length];
         for (int i = 0; i < args.length; i++) {
             Instruction.Argument argument = instruction.arguments[i];
             if (argument.string != null) {
-                if (argument.string.equalsIgnoreCase(args[i])) {
-                    data[i] = args[i];
-                    continue;
-                } else {
-                    return false;
-                }
+                data[i] = args[i];
+                continue;
             }
 
             if (argument.prefix != null) {
-                if (argument.prefix != args[i].charAt(0)) {
-                    return false;
-                }
-                args[i] = args[i].substring(1);
+                args[i] = args[i].substring(1).trim();
             }
-            try {
-                data[i] = argument.symbolType.evaluator.evaluate(args[i], symbols);
-            } catch (SymbolUnknownException e) {
-                return false;
-            } catch (SymbolUndefinedException e) {
-                data[i] = args[i];
+            CompiledExpression expression = argument.symbolType.evaluator.compile(args[i], symbols);
+            long result = expression.tryEvaluate(symbols);
+            switch (CompiledExpression.status(result)) {
+                case CompiledExpression.DEFINED:
+                    data[i] = CompiledExpression.value(result);
+                    break;
+                case CompiledExpression.UNDEFINED:
+                    data[i] = args[i];
+                    break;
+                default:
+                    throw new CompileException(this, "Unknown symbol: " + expression.getName(CompiledExpression.value(result)));
             }
         }
         this.instruction = instruction;
         this.objects = data;
-        return true;
     }
 }
@@ -31,17 +31,11 @@
 
 package compiler.components;
 
-import util.Constants;
 import util.IntegerEvaluator;
-import util.exceptions.SymbolAlreadyDefinedException;
 import util.exceptions.SymbolUndefinedException;
 
 import java.util.HashMap;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Dries007
@@ -53,11 +47,11 @@ public class Symbol extends Component
     public       Integer intValue;
     public       String  stringValue;
 
-    private Symbol(int srcLine, Matcher matcher, Type type)
+    public Symbol(int srcLine, Type type, String key)
     {
         super(srcLine);
         this.type = type;
-        this.key = matcher.groupCount() >= 1 ? matcher.group(1) : null;
+        this.key = key;
     }
 
     public Symbol()
@@ -67,76 +61,6 @@ public class Symbol extends Component
         this.type = null;
     }
 
-    public static void findSymbols(List<Component> components, Map<String, Symbol> symbols) throws SymbolAlreadyDefinedException
-    {
-        for (Type type : Type.values())
-        {
-            ListIterator<Component> i = components.listIterator(components.size());
-            while (i.hasPrevious())
-            {
-                Component component = i.previous();
-                if (component instanceof SrcComponent)
-                {
-                    String src = ((SrcComponent) component).contents;
-
-                    Matcher matcher = type.pattern.matcher(src);
-                    if (!matcher.find()) continue;
-                    i.remove();
-
-                    SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
-                    if (pre.shouldAdd()) i.add(pre);
-
-                    Symbol symbol = new Symbol(pre.getSrcLine(), matcher, type);
-                    if (symbol.key != null)
-                    {
-                        if (symbols.containsKey(symbol.key.toLowerCase())) throw new SymbolAlreadyDefinedException(symbol, symbol.toString());
-                        symbols.put(symbol.key.toLowerCase(), symbol);
-                    }
-                    i.add(symbol);
-                    SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
-                    if (post.shouldAdd()) i.add(post);
-                }
-            }
-        }
-    }
-
-    public static boolean resolveSymbols(List<Component> components, Map<String, Symbol> symbols)
-    {
-        boolean resolvedAny = false;
-        ListIterator<Component> i = components.listIterator();
-        Component prev = null;
-        while (i.hasNext())
-        {
-            if (prev == null)
-            {
-                prev = i.next();
-                continue;
-            }
-            Component current = i.next();
-            if (prev instanceof Symbol && current instanceof SrcComponent && !((Symbol) prev).isDefined() && ((Symbol) prev).type.evaluate)
-            {
-                try
-                {
-                    ((Symbol) prev).intValue = ((Symbol) prev).type.evaluator.evaluate(((SrcComponent) current).contents, symbols);
-                    ((Symbol) prev).stringValue = ((SrcComponent) current).contents;
-                    i.remove();
-                    if (((Symbol) prev).type.removeFromSrc)
-                    {
-                        i.previous();
-                        i.remove();
-                    }
-                    resolvedAny = true;
-                }
-                catch (SymbolUndefinedException ignored)
-                {
-
-                }
-            }
-            prev = current;
-        }
-        return resolvedAny;
-    }
-
     public boolean isDefined()
     {
         return intValue != null;
@@ -174,21 +98,19 @@ public class Symbol extends Component
 
     public static enum Type
     {
-        LABEL(false, Constants.LABEL, IntegerEvaluator.EVALUATOR, false),
-        EQU(true, Constants.EQU, IntegerEvaluator.EVALUATOR, true),
-        DATA(true, Constants.DATA, IntegerEvaluator.EVALUATOR, true),
-        BIT(true, Constants.BIT, IntegerEvaluator.EVALUATOR_BITS, true),
-        ORG(false, Constants.ORG, IntegerEvaluator.EVALUATOR, true),
-        END(false, Constants.END, null, false);
+        LABEL(false, IntegerEvaluator.EVALUATOR, false),
+        EQU(true, IntegerEvaluator.EVALUATOR, true),
+        DATA(true, IntegerEvaluator.EVALUATOR, true),
+        BIT(true, IntegerEvaluator.EVALUATOR_BITS, true),
+        ORG(false, IntegerEvaluator.EVALUATOR, true),
+        END(false, null, false);
 
-        public final  Pattern          pattern;
-        public final  IntegerEvaluator evaluator;
-        private final boolean          removeFromSrc, evaluate;
+        public final IntegerEvaluator evaluator;
+        public final boolean          removeFromSrc, evaluate;
 
-        private Type(boolean removeFromSrc, Pattern pattern, IntegerEvaluator evaluator, boolean evaluate)
+        private Type(boolean removeFromSrc, IntegerEvaluator evaluator, boolean evaluate)
         {
             this.removeFromSrc = removeFromSrc;
-            this.pattern = pattern;
             this.evaluator = evaluator;
             this.evaluate = evaluate;
         }
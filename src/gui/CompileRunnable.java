@@ -31,6 +31,7 @@
 
 package gui;
 
+import compiler.CompileCache;
 import compiler.Parser;
 import util.Helper;
 import util.exceptions.CompileException;
@@ -52,6 +53,7 @@ import static util.Constants.*;
 class CompileRunnable implements Runnable
 {
     public boolean running;
+    private final CompileCache cache = new CompileCache();
 
     @Override
     public void run()
@@ -63,7 +65,7 @@ class CompileRunnable implements Runnable
         {
             MAIN_GUI.status.setText("Compiling...");
             System.gc();
-            final Parser parser = new Parser(MAIN_GUI.asmContents.getText());
+            final Parser parser = new Parser(MAIN_GUI.asmContents.getText(), cache);
             while (parser.hasWork())
             {
                 parser.doWork();
@@ -135,6 +137,8 @@ class CompileRunnable implements Runnable
                         break;
                 }
             }
+            MAIN_GUI.setCompiledImage(parser.image);
+            MAIN_GUI.status.setText(String.format("Done in %.1f ms", parser.stats.getTotalNanos() / 1e6));
         }
         catch (Exception e)
         {
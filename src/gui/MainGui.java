@@ -31,6 +31,7 @@
 package gui;
 
 import JavaEasembly.Main;
+import compiler.MemoryImage;
 import compiler.components.Symbol;
 import upload.Uploader;
 import org.apache.commons.io.FileUtils;
@@ -52,6 +53,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Objects;
 
 import static java.lang.Boolean.parseBoolean;
 import static java.lang.Integer.parseInt;
@@ -107,6 +109,12 @@ public class MainGui
     public       JMenuItem            about;
 
     public HashMap<String, Symbol> symbolHashMap;
+    /**
+     * The image of the last compile that got through and the source file it's from, uploaded without reading the output
+     * file back.
+     */
+    private MemoryImage compiledImage;
+    private File compiledFile;
 
     //public UploadRunnable  uploadRunnable  = new UploadRunnable();
     public CompileRunnable compileRunnable = new CompileRunnable();
@@ -500,7 +508,10 @@ public class MainGui
             {
                 try
                 {
-                    ((Uploader) deviceTypeBox.getSelectedItem()).upload(((String) comPortBox.getSelectedItem()), ((Integer) baudRateBox.getSelectedItem()), pm);
+                    Uploader uploader = (Uploader) deviceTypeBox.getSelectedItem();
+                    MemoryImage image = getCompiledImage();
+                    if (image == null) uploader.upload(((String) comPortBox.getSelectedItem()), ((Integer) baudRateBox.getSelectedItem()), pm);
+                    else uploader.upload(image, ((String) comPortBox.getSelectedItem()), ((Integer) baudRateBox.getSelectedItem()), pm);
                 }
                 catch (Throwable e)
                 {
@@ -520,6 +531,20 @@ public class MainGui
         }).start();
     }
 
+    public synchronized void setCompiledImage(MemoryImage image)
+    {
+        compiledImage = image;
+        compiledFile = Main.srcFile;
+    }
+
+    /**
+     * @return the image of the last compile of the current source file, null if there is none
+     */
+    public synchronized MemoryImage getCompiledImage()
+    {
+        return Objects.equals(compiledFile, Main.srcFile) ? compiledImage : null;
+    }
+
     public void compile()
     {
         if (!compileRunnable.running) new Thread(compileRunnable).start();
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static upload.UploaderXC888.*;
+
+/**
+ * Sends blocks to the XC888 bootstrap loader and waits for its answer. A block goes out in one write, checksum
+ * included, and the answer is read with a deadline instead of sleeping between polls.
+ * The loader handles one block at a time (it only has the UART's one byte buffer while it erases or programs), so the
+ * next block can't be sent before the answer to the previous one. What can be done up front is: blocks are built
+ * before the upload starts, see {@link #frame(int...)}.
+ *
+ * @author Dries007
+ */
+class BslTransport {
+
+    /**
+     * How long the loader gets to answer, a mass erase is the slowest.
+     */
+    public static final int TIMEOUT = 1000;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[PAGE_SIZE + 8];
+
+    BslTransport(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * @return the block with its XOR checksum at the end, ready for {@link #send(byte[])}
+     */
+    static byte[] frame(int... data) {
+        byte[] block = new byte[data.length + 1];
+        int cs = 0x00;
+        for (int i = 0; i < data.length; i++) {
+            block[i] = (byte) data[i];
+            cs ^= data[i];
+        }
+        block[data.length] = (byte) cs;
+        return block;
+    }
+
+    /**
+     * Sends a block without a checksum, only the init byte is sent like that.
+     */
+    void sendRaw(int data) throws IOException {
+        buffer[0] = (byte) data;
+        out.write(buffer, 0, 1);
+        out.flush();
+        readResponse();
+    }
+
+    /**
+     * Builds the block and its checksum in a reused buffer and sends it.
+     */
+    void send(int... data) throws IOException {
+        int cs = 0x00;
+        for (int i = 0; i < data.length; i++) {
+            buffer[i] = (byte) data[i];
+            cs ^= data[i];
+        }
+        buffer[data.length] = (byte) cs;
+        out.write(buffer, 0, data.length + 1);
+        out.flush();
+        readResponse();
+    }
+
+    /**
+     * @param block made by {@link #frame(int...)}
+     */
+    void send(byte[] block) throws IOException {
+        out.write(block);
+        out.flush();
+        readResponse();
+    }
+
+    /**
+     * Reads flash back: a header with the address and length, answered like any other header and then followed by the
+     * bytes and their XOR checksum.
+     *
+     * @param length at most 0xFF
+     */
+    byte[] read(int address, int length) throws IOException {
+        send(TYPE_HEADER, MODE_READ_FLASH, address >>> 8, address & 0xFF, length, 0x00, 0x00);
+        byte[] bytes = new byte[length];
+        int cs = 0x00;
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) readByte();
+            cs ^= bytes[i];
+        }
+        if ((byte) cs != (byte) readByte()) {
+            throw new IOException("Checksum Error");
+        }
+        return bytes;
+    }
+
+    /**
+     * Throws away whatever the loader still sends, after an answer that didn't make sense.
+     */
+    void drain() throws IOException {
+        //noinspection StatementWithEmptyBody
+        while (in.read() != -1) {
+        }
+    }
+
+    private int readByte() throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT * 1000000L;
+        int b;
+        while ((b = in.read()) == -1) { // The serial port blocks for a while itself before giving up
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Timed out while waiting for a response!");
+            }
+        }
+        return b;
+    }
+
+    private void readResponse() throws IOException {
+        int response = readByte();
+        switch (response) {
+            case RESPONSE_OK:
+                return;
+            case RESPONSE_CS_ERROR:
+                throw new IOException("Checksum Error");
+            case RESPONSE_FLASH_LOCKED:
+                throw new IOException("Flash Locked");
+            case RESPONSE_VERIFY_ERROR:
+                throw new IOException("Verify Error");
+            case RESPONSE_BLOCK_ERROR:
+                throw new IOException("Block Error");
+            default:
+                throw new IOException(String.format("Unknown response: 0x%02X", response));
+        }
+    }
+}
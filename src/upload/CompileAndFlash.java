@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import compiler.MemoryImage;
+import compiler.Parser;
+import compiler.Section;
+
+import javax.swing.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static upload.UploaderXC888.*;
+
+/**
+ * Compiles and uploads at the same time. The init and the erase start before the compile does, so the erase time is
+ * spent compiling. In MAKE_HEX every page a section fills up completely goes to the board right away, no other
+ * section can change it anymore; pages that are only partly used wait for the end of the compile.
+ * If the compile fails the upload stops without starting the code, the board is erased then.
+ *
+ * @author Dries007
+ */
+public class CompileAndFlash {
+
+    private CompileAndFlash() {
+    }
+
+    /**
+     * @param parser     not started yet
+     * @param connection left open, the caller closes it
+     */
+    public static void run(final Parser parser, final Connection connection, final ProgressMonitor pm) throws Exception {
+        final UploaderXC888 uploader = new UploaderXC888();
+        final LinkedBlockingQueue<Page> pages = new LinkedBlockingQueue<>();
+        final boolean[] queued = new boolean[MemoryImage.PAGES];
+        FutureTask<Void> upload = new FutureTask<>(() -> {
+            uploader.upload(pages, parser.image, connection, pm);
+            return null;
+        });
+        new Thread(upload, "Upload to " + connection.getName()).start();
+
+        parser.sectionListener = (Section section, MemoryImage image) -> {
+            if (section.getSize() == 0) {
+                return;
+            }
+            int last = (section.startaddress + section.getSize() - 1) / PAGE_SIZE;
+            for (int page = section.startaddress / PAGE_SIZE; page <= last; page++) {
+                if (!queued[page] && image.isPageFull(page)) {
+                    queued[page] = true;
+                    pages.add(new Page(image, page));
+                }
+            }
+        };
+        try {
+            while (parser.hasWork()) {
+                parser.doWork();
+            }
+        } catch (Exception e) {
+            pages.add(ABORT);
+            try {
+                upload.get();
+            } catch (ExecutionException ignored) {
+                // The compile error is the one that matters
+            }
+            throw e;
+        }
+        int count = 0;
+        for (int page = 0; page < MemoryImage.PAGES; page++) {
+            if (queued[page]) {
+                count++;
+            } else if (parser.image.isPageUsed(page)) {
+                count++;
+                pages.add(new Page(parser.image, page));
+            }
+        }
+        pm.setMaximum(count);
+        pages.add(END_OF_PAGES);
+        try {
+            upload.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import compiler.MemoryImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * What was last flashed through a COM port, kept in a file so the next upload can compare against it. The file is the
+ * flash contents from address 0, like a .bin output file. It's removed before an upload starts and only written when
+ * the upload finished, so a failed upload never leaves a manifest that doesn't match the chip.
+ * Only used with upload.differential on. The port says nothing about the board on it, so the uploader reads back what
+ * it doesn't erase before trusting the manifest, see {@link UploaderXC888#upload(MemoryImage, Connection, ProgressMonitor)}.
+ *
+ * @author Dries007
+ */
+public class FlashManifest {
+
+    private FlashManifest() {
+    }
+
+    public static File fileFor(String comPort) {
+        return new File("flash-" + comPort.replaceAll("[^\\w.-]", "_") + ".bin");
+    }
+
+    /**
+     * @return the image last flashed through the port, null if unknown
+     */
+    public static MemoryImage load(String comPort) {
+        File file = fileFor(comPort);
+        if (!file.isFile() || file.length() > MemoryImage.SIZE) {
+            return null;
+        }
+        try {
+            return MemoryImage.fromBinary(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void save(String comPort, MemoryImage image) throws IOException {
+        Files.write(fileFor(comPort).toPath(), image.toBinary());
+    }
+
+    public static void delete(String comPort) throws IOException {
+        Files.deleteIfExists(fileFor(comPort).toPath());
+    }
+}
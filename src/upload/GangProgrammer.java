@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import compiler.MemoryImage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Flashes one image into many boards at once, for production lines. Every port gets its own upload on a bounded pool,
+ * so a line of boards takes as long as the slowest one instead of all of them added up. Failed uploads are retried
+ * from the start. A board that failed is still halfway through a block and only takes the init byte again after a
+ * reset, so before every retry the connection resets it, or the listener has someone do it.
+ *
+ * @author Dries007
+ */
+public class GangProgrammer {
+
+    /**
+     * Opens a port, {@link SerialConnection} on a real station.
+     */
+    public interface ConnectionFactory {
+
+        Connection open(String port) throws IOException;
+    }
+
+    /**
+     * Called from the upload threads.
+     */
+    public interface Listener {
+
+        void progress(String port, int done, int total, String note);
+
+        void finished(Result result);
+
+        /**
+         * The connection can't reset the board, someone has to before it's tried again. Returns when that's done.
+         */
+        void reset(String port) throws IOException, InterruptedException;
+    }
+
+    private final Uploader uploader;
+    private final ConnectionFactory connections;
+    private final int threads;
+    private final int retries;
+
+    /**
+     * @param threads at most this many ports at the same time
+     * @param retries extra attempts per port after a failed one
+     */
+    public GangProgrammer(Uploader uploader, ConnectionFactory connections, int threads, int retries) {
+        this.uploader = uploader;
+        this.connections = connections;
+        this.threads = threads;
+        this.retries = retries;
+    }
+
+    /**
+     * @return a result per port, in the same order
+     */
+    public Result[] program(final MemoryImage image, List<String> ports, final Listener listener) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ports.size())));
+        try {
+            List<Future<Result>> futures = new ArrayList<>(ports.size());
+            for (final String port : ports) {
+                futures.add(pool.submit(() -> program(image, port, listener)));
+            }
+            Result[] results = new Result[ports.size()];
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    results[i] = new Result(ports.get(i), 0, 0, e);
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result program(MemoryImage image, String port, Listener listener) {
+        long start = System.nanoTime();
+        Exception error = null;
+        int attempts = 0;
+        do {
+            attempts++;
+            try (Connection connection = connections.open(port)) {
+                if (error != null) {
+                    reset(connection, port, listener, error);
+                }
+                uploader.upload(image, connection, new PortProgress(port, listener));
+                error = null;
+            } catch (Exception e) {
+                error = e;
+            }
+        } while (error != null && attempts <= retries);
+        Result result = new Result(port, attempts, System.nanoTime() - start, error);
+        if (listener != null) {
+            listener.finished(result);
+        }
+        return result;
+    }
+
+    private static void reset(Connection connection, String port, Listener listener, Exception error) throws IOException, InterruptedException {
+        if (connection.reset()) {
+            return;
+        }
+        if (listener == null) {
+            throw new IOException("Can't reset " + port + " to retry after: " + error, error);
+        }
+        listener.reset(port);
+    }
+
+    /**
+     * @return one line per port and a total, with the time the whole line took and the time one board after the
+     * other would have taken
+     */
+    public static String summary(Result[] results, long nanos) {
+        StringBuilder stringBuilder = new StringBuilder();
+        int ok = 0;
+        long sum = 0;
+        Result slowest = null;
+        for (Result result : results) {
+            stringBuilder.append(result).append('\n');
+            if (result.ok) {
+                ok++;
+            }
+            sum += result.nanos;
+            if (slowest == null || result.nanos > slowest.nanos) {
+                slowest = result;
+            }
+        }
+        stringBuilder.append(String.format("%d of %d boards ok in %.1f ms", ok, results.length, nanos / 1e6));
+        if (slowest != null) {
+            stringBuilder.append(String.format(", slowest %s %.1f ms, one by one %.1f ms", slowest.port, slowest.nanos / 1e6, sum / 1e6));
+        }
+        return stringBuilder.append('\n').toString();
+    }
+
+    public static class Result {
+
+        public final String port;
+        public final boolean ok;
+        public final int attempts;
+        public final long nanos;
+        /**
+         * The error of the last attempt, null if ok
+         */
+        public final Exception error;
+
+        public Result(String port, int attempts, long nanos, Exception error) {
+            this.port = port;
+            this.ok = error == null;
+            this.attempts = attempts;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s after %d attempt%s, %.1f ms", port, ok ? "ok" : "FAILED (" + error + ")", attempts, attempts == 1 ? "" : "s", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import gnu.io.NRSerialPort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A COM port. NRSerialPort gives reads a 100 ms receive timeout.
+ * It doesn't give access to the DTR and RTS lines either, so it can't {@link #reset()} the board.
+ *
+ * @author Dries007
+ */
+public class SerialConnection implements Connection {
+
+    private final String comPort;
+    private final NRSerialPort serial;
+
+    public SerialConnection(String comPort, int baudRate) throws IOException {
+        this.comPort = comPort;
+        this.serial = new NRSerialPort(comPort, baudRate);
+        if (!serial.connect()) {
+            throw new IOException("COM port did not connect.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return comPort;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return serial.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return serial.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        serial.disconnect();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import compiler.MemoryImage;
+import compiler.OutputFormat;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static util.Constants.*;
+
+/**
+ * Times {@link UploaderXC888} against the {@link XC888Simulator}: a full upload, then a differential one after
+ * changing one byte. Prints the code and line throughput and the round trips per KB.
+ * <p/>
+ * Arguments: [image file (.hex, .bin or .s19) or size in KB of random code] [baud rate] [us per write call]
+ * [ms per erase] [us per block programmed]
+ *
+ * @author Dries007
+ */
+public class UploadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        MemoryImage image = args.length > 0 ? loadImage(args[0]) : randomImage(8);
+        int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 115200;
+        long writeNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 1000);
+        long eraseNanos = TimeUnit.MILLISECONDS.toNanos(args.length > 3 ? Long.parseLong(args[3]) : 100);
+        long programNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 4 ? Long.parseLong(args[4]) : 500);
+
+        System.out.printf("%d bytes of code, %d baud, %d us per write, %d ms per erase, %d us per block%n", image.getUsedBytes(), baudRate, writeNanos / 1000, eraseNanos / 1000000, programNanos / 1000);
+        XC888Simulator simulator = new XC888Simulator(baudRate, writeNanos, eraseNanos, programNanos);
+        String differential = PROPERTIES.getProperty(UPLOAD_DIFF);
+        try {
+            PROPERTIES.setProperty(UPLOAD_DIFF, "true");
+            FlashManifest.delete(simulator.getName());
+            run("Full", image, simulator, baudRate);
+
+            MemoryImage changed = MemoryImage.fromBinary(image.toBinary());
+            int address = image.nextUsed(0);
+            changed.set(address, ~image.get(address));
+            simulator.reset();
+            run("Differential", changed, simulator, baudRate);
+        } finally {
+            FlashManifest.delete(simulator.getName());
+            if (differential == null) {
+                PROPERTIES.remove(UPLOAD_DIFF);
+            } else {
+                PROPERTIES.setProperty(UPLOAD_DIFF, differential);
+            }
+        }
+    }
+
+    private static void run(String name, MemoryImage image, XC888Simulator simulator, int baudRate) throws Exception {
+        long bytes = simulator.getBytesReceived();
+        long writes = simulator.getWrites();
+        long roundTrips = simulator.getRoundTrips();
+        long start = System.nanoTime();
+        new UploaderXC888().upload(image, simulator, new PortProgress(simulator.getName(), null));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bytes = simulator.getBytesReceived() - bytes;
+        writes = simulator.getWrites() - writes;
+        roundTrips = simulator.getRoundTrips() - roundTrips;
+        System.out.printf("%-12s %8.1f ms  %8.0f B/s of code  %8.0f B/s on the line (%.0f%% of %d baud)  %d writes  %d round trips  %.1f round trips/KB  %s%n",
+                name, seconds * 1000, image.getUsedBytes() / seconds, bytes / seconds, 100 * bytes / seconds / (baudRate / 10.0), baudRate, writes, roundTrips,
+                roundTrips * 1024.0 / Math.max(1, image.getUsedBytes()), simulator.contains(image) && simulator.isExecuted() ? "verified" : "FLASH DOESN'T MATCH");
+    }
+
+    private static MemoryImage loadImage(String arg) throws Exception {
+        File file = new File(arg);
+        if (!file.isFile()) {
+            return randomImage(Integer.parseInt(arg));
+        }
+        return OutputFormat.forName(FilenameUtils.getExtension(arg)).decode(Files.readAllBytes(file.toPath()));
+    }
+
+    private static MemoryImage randomImage(int kb) {
+        MemoryImage image = new MemoryImage();
+        Random random = new Random(8051);
+        for (int address = 0; address < kb * 1024; address++) {
+            image.set(address, random.nextInt(0x100));
+        }
+        return image;
+    }
+}
@@ -31,8 +31,15 @@
 package upload;
 
 import gnu.io.NRSerialPort;
+import JavaEasembly.Main;
+import compiler.MemoryImage;
+import compiler.OutputFormat;
 
 import javax.swing.*;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Set;
 
 /**
@@ -49,5 +56,36 @@ public abstract class Uploader {
         return new Uploader[]{new UploaderXC888()};
     }
 
-    public abstract void upload(String comPort, Integer baudRate, ProgressMonitor pm) throws Exception;
+    /**
+     * @return the image of the last compile of srcFile, read back from its output file
+     */
+    public static MemoryImage readImage(File srcFile) throws IOException {
+        OutputFormat format = Main.getOutputFormat();
+        File file = format.forSource(srcFile);
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        return format.decode(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Uploads the output file of {@link Main#srcFile}.
+     */
+    public void upload(String comPort, Integer baudRate, ProgressMonitor pm) throws Exception {
+        upload(readImage(Main.srcFile), comPort, baudRate, pm);
+    }
+
+    /**
+     * Uploads an image straight from the compiler, without going through a file.
+     */
+    public void upload(MemoryImage image, String comPort, Integer baudRate, ProgressMonitor pm) throws Exception {
+        try (Connection connection = new SerialConnection(comPort, baudRate)) {
+            upload(image, connection, pm);
+        }
+    }
+
+    /**
+     * @param connection left open, the caller closes it
+     */
+    public abstract void upload(MemoryImage image, Connection connection, ProgressMonitor pm) throws Exception;
 }
@@ -30,15 +30,13 @@
  */
 package upload;
 
-import gnu.io.NRSerialPort;
-import JavaEasembly.Main;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import compiler.MemoryImage;
 
 import javax.swing.*;
-import java.io.*;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
 
+import static java.lang.Boolean.parseBoolean;
 import static util.Constants.*;
 
 /**
@@ -61,6 +59,7 @@ public class UploaderXC888 extends Uploader {
     public static final int MODE_READ_FLASH = 0x12;
 
     public static final int OPTION_ERASE_ALL = 0xC0;
+    public static final int OPTION_ERASE_SECTORS = 0x00;
 
     public static final int RESPONSE_OK = 0x55;
     public static final int RESPONSE_CS_ERROR = 0xFE;
@@ -68,15 +67,48 @@ public class UploaderXC888 extends Uploader {
     public static final int RESPONSE_VERIFY_ERROR = 0xFC;
     public static final int RESPONSE_BLOCK_ERROR = 0xFF;
 
-    public static final int PAGE_SIZE = 0x40; // 64 bytes
-    //public static final int PAGE_SIZE = 0x20; // 32 bytes
+    public static final int PAGE_SIZE = MemoryImage.PAGE_SIZE; // 64 bytes
+    /**
+     * The P-Flash banks, the part erased when a differential upload only changes some of the code. Their sectors are
+     * selected by the first three bytes of the erase header.
+     */
+    public static final int BANK_SIZE = 0x2000;
+    public static final int BANKS = 3;
+    public static final int ALL_BANKS = -1;
 
-    public void upload(String comPort, Integer baudRate, ProgressMonitor pm) throws Exception {
-        NRSerialPort serial = new NRSerialPort(comPort, baudRate);
-        if (!serial.connect()) {
-            throw new IOException("COM port did not connect.");
+    /**
+     * The last page in a stream, see {@link #upload(BlockingQueue, MemoryImage, Connection, ProgressMonitor)}.
+     */
+    static final Page END_OF_PAGES = new Page();
+    /**
+     * Stops a stream without starting the code, the compile failed.
+     */
+    static final Page ABORT = new Page();
+
+    /**
+     * A differential upload (upload.differential) compares the image with the manifest of the last upload through the
+     * same port and only erases and programs the P-Flash banks that changed. The manifest can be stale: another board
+     * on the same port, or flashed with another tool. So before anything is erased, every used page of the image
+     * outside of those banks is read back and compared. If one doesn't match, or reading doesn't work, everything is
+     * erased and programmed like without a manifest.
+     * Without upload.differential the manifest isn't read or written.
+     */
+    @Override
+    public void upload(MemoryImage image, Connection connection, ProgressMonitor pm) throws Exception {
+        String comPort = connection.getName();
+        boolean differential = isDifferential();
+        MemoryImage flashed = differential ? FlashManifest.load(comPort) : null;
+        int banks = flashed == null ? ALL_BANKS : changedBanks(flashed, image);
+        if (differential) {
+            FlashManifest.delete(comPort);
         }
-        Page[] pages = parseFile();
+        BslTransport transport = new BslTransport(connection.getInputStream(), connection.getOutputStream());
+        transport.sendRaw(INIT); // Init communication
+        if (banks != ALL_BANKS && !isFlashed(transport, image, banks, pm)) {
+            transport.drain();
+            banks = ALL_BANKS;
+        }
+        Page[] pages = toPages(image, banks);
         int count = 0;
         for (Page page : pages) {
             if (page != null) {
@@ -84,115 +116,170 @@ public class UploaderXC888 extends Uploader {
             }
         }
         pm.setMaximum(count);
-        try {
-            InputStream in = serial.getInputStream();
-            OutputStream out = serial.getOutputStream();
-            sendData(in, out, false, INIT); // Init communication
-            sendData(in, out, true, TYPE_HEADER, MODE_ERASE_FLASH, 0x00, 0x00, 0x00, 0x00, OPTION_ERASE_ALL); // Clear all flash
-
-            for (int pageNr = 0; pageNr < pages.length; pageNr++) {
-                Page page = pages[pageNr];
-                int address = pageNr * PAGE_SIZE;
+        if (banks == ALL_BANKS) {
+            transport.send(TYPE_HEADER, MODE_ERASE_FLASH, 0x00, 0x00, 0x00, 0x00, OPTION_ERASE_ALL); // Clear all flash
+        } else if (banks != 0) {
+            transport.send(TYPE_HEADER, MODE_ERASE_FLASH, sectors(banks, 0), sectors(banks, 1), sectors(banks, 2), 0x00, OPTION_ERASE_SECTORS); // Clear the changed banks
+        }
+
+        int sent = 0;
+        for (int pageNr = 0; pageNr < pages.length; pageNr++) {
+            Page page = pages[pageNr];
+            int address = pageNr * PAGE_SIZE;
+            if (page != null) {
                 pm.setNote(String.format("Uploading 0x%04X -> 0x%04X", address, address + PAGE_SIZE));
-                if (page != null) {
-                    sendData(in, out, true, TYPE_HEADER, MODE_DL_FLASH, address >>> 8, address & 0xFF, PAGE_SIZE + 3, 0x00, 0x00);
-                    sendData(in, out, true, page.data);
-                }
-                pm.setProgress(pageNr);
+                transport.send(page.header);
+                transport.send(page.data);
+                pm.setProgress(++sent);
             }
-            sendData(in, out, true, TYPE_HEADER, MODE_EX_FLASH, 0x00, 0x00, 0x00, 0x00, 0x00); // Execute from flash
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            serial.disconnect();
+        }
+        transport.send(TYPE_HEADER, MODE_EX_FLASH, 0x00, 0x00, 0x00, 0x00, 0x00); // Execute from flash
+        if (differential) {
+            FlashManifest.save(comPort, image);
         }
     }
 
-    private Page[] parseFile() throws Exception {
-        Page[] pages = new Page[0xFFFF / PAGE_SIZE];
+    /**
+     * Starts before the image is done: the init and a mass erase go out right away, then every page from the queue
+     * until END_OF_PAGES. A differential upload needs the whole image up front, so this always erases everything.
+     *
+     * @param image only read after END_OF_PAGES, to write the manifest
+     */
+    void upload(BlockingQueue<Page> pages, MemoryImage image, Connection connection, ProgressMonitor pm) throws Exception {
+        String comPort = connection.getName();
+        boolean differential = isDifferential();
+        if (differential) {
+            FlashManifest.delete(comPort);
+        }
+        BslTransport transport = new BslTransport(connection.getInputStream(), connection.getOutputStream());
+        transport.sendRaw(INIT); // Init communication
+        transport.send(TYPE_HEADER, MODE_ERASE_FLASH, 0x00, 0x00, 0x00, 0x00, OPTION_ERASE_ALL); // Clear all flash, while the compile goes on
 
-        File hexFile = new File(Main.srcFile.getParentFile(), FilenameUtils.getBaseName(Main.srcFile.getName()) + ".hex");
-        if (!hexFile.exists()) {
-            throw new FileNotFoundException(hexFile.getAbsolutePath());
+        int sent = 0;
+        for (Page page = pages.take(); page != END_OF_PAGES; page = pages.take()) {
+            if (page == ABORT) {
+                throw new IOException("Compile failed, upload stopped.");
+            }
+            pm.setNote(String.format("Uploading 0x%04X -> 0x%04X", page.address, page.address + PAGE_SIZE));
+            transport.send(page.header);
+            transport.send(page.data);
+            pm.setProgress(++sent);
+        }
+        transport.send(TYPE_HEADER, MODE_EX_FLASH, 0x00, 0x00, 0x00, 0x00, 0x00); // Execute from flash
+        if (differential) {
+            FlashManifest.save(comPort, image);
         }
-        //noinspection unchecked
-        for (String line : (List<String>) FileUtils.readLines(hexFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT))) {
-            if (line.length() == 0 || line.charAt(0) != ':') {
+    }
+
+    private static boolean isDifferential() {
+        return parseBoolean(PROPERTIES.getProperty(UPLOAD_DIFF, "false"));
+    }
+
+    /**
+     * Reads back every used page of the image that isn't in the banks about to be erased. Unused bytes aren't checked,
+     * the code never runs or reads them.
+     *
+     * @return false if a page isn't on the chip as the image has it, or the chip can't be read
+     */
+    private static boolean isFlashed(BslTransport transport, MemoryImage image, int banks, ProgressMonitor pm) {
+        for (int pageNr = 0; pageNr < MemoryImage.PAGES; pageNr++) {
+            int address = pageNr * PAGE_SIZE;
+            if (!image.isPageUsed(pageNr) || (address < BANKS * BANK_SIZE && (banks & (1 << (address / BANK_SIZE))) != 0)) {
                 continue;
             }
-            int type = Integer.parseInt(line.substring(7, 9), 16);
-            if (type != 0) {
-                break;
+            pm.setNote(String.format("Checking 0x%04X -> 0x%04X", address, address + PAGE_SIZE));
+            byte[] read;
+            try {
+                read = transport.read(address, PAGE_SIZE);
+            } catch (IOException e) {
+                return false;
             }
-            int address = Integer.parseInt(line.substring(3, 7), 16);
-            int pageNr = address / PAGE_SIZE;
-            if (pages[pageNr] == null) {
-                pages[pageNr] = new Page();
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                if (image.isUsed(address + i) && (read[i] & 0xFF) != image.get(address + i)) {
+                    return false;
+                }
             }
-            Page page = pages[pageNr];
-            page.parse(address, Integer.parseInt(line.substring(1, 3), 16), line);
         }
-
-        return pages;
+        return true;
     }
 
-    private void sendData(InputStream ins, OutputStream outs, boolean sendCs, int... data) throws IOException, InterruptedException {
-        int cs = 0x00;
-        for (int bt : data) {
-            outs.write(bt);
-            cs ^= bt;
-        }
-        //System.out.printf("Send %s", Helper.toHexString(data)); // todo: debug
-        if (sendCs) {
-            outs.write(cs);
-            //System.out.printf(" with CS: 0x%02X", cs); // todo: debug
-        }
-        //System.out.println();
-        outs.flush();
-        int timeout = 10;
-        while ((cs = ins.read()) == -1) {
-            Thread.sleep(1); // Because some operations take a bit of time.
-            timeout--;
-            if (timeout == 0) {
-                throw new IOException("Timed out while waiting for a response!");
+    /**
+     * @return a bit per P-Flash bank that has to be erased and programmed again to go from flashed to image, or
+     * ALL_BANKS if code outside of the P-Flash changed
+     */
+    static int changedBanks(MemoryImage flashed, MemoryImage image) {
+        int banks = 0;
+        for (int address = 0; address < MemoryImage.SIZE; address++) {
+            if (flashed.get(address) != image.get(address)) {
+                if (address >= BANKS * BANK_SIZE) {
+                    return ALL_BANKS;
+                }
+                banks |= 1 << (address / BANK_SIZE);
+                address = (address / BANK_SIZE + 1) * BANK_SIZE - 1; // Rest of the bank doesn't matter anymore
             }
         }
-        switch (cs) {
-            case RESPONSE_OK:
-                return;
-            case RESPONSE_CS_ERROR:
-                throw new IOException("Checksum Error");
-            case RESPONSE_FLASH_LOCKED:
-                throw new IOException("Flash Locked");
-            case RESPONSE_VERIFY_ERROR:
-                throw new IOException("Verify Error");
-            case RESPONSE_BLOCK_ERROR:
-                throw new IOException("Block Error");
-            default:
-                throw new IOException(String.format("Unknown response: 0x%02X", cs));
+        return banks;
+    }
+
+    /**
+     * @return the sector select byte of the erase header for a bank: every sector or none
+     */
+    private static int sectors(int banks, int bank) {
+        return (banks & (1 << bank)) != 0 ? 0xFF : 0x00;
+    }
+
+    /**
+     * @return a page for every page of the image that has code in it, null for the others
+     */
+    static Page[] toPages(MemoryImage image) {
+        return toPages(image, ALL_BANKS);
+    }
+
+    /**
+     * @param banks only pages in these P-Flash banks, or ALL_BANKS
+     * @return a page for every page of the image that has code in it, null for the others
+     */
+    static Page[] toPages(MemoryImage image, int banks) {
+        Page[] pages = new Page[MemoryImage.PAGES];
+        for (int pageNr = 0; pageNr < pages.length; pageNr++) {
+            if (image.isPageUsed(pageNr) && (banks == ALL_BANKS || (banks & (1 << (pageNr * PAGE_SIZE / BANK_SIZE))) != 0)) {
+                pages[pageNr] = new Page(image, pageNr);
+            }
         }
+        return pages;
     }
 
-    private static class Page {
+    /**
+     * The header and data block of a page, checksums included, so uploading is only writing them out.
+     */
+    static class Page {
 
-        int[] data = new int[PAGE_SIZE + 2];
+        final int address;
+        final byte[] header;
+        final byte[] data;
 
-        public Page() {
-            data[0] = TYPE_EOT;
-            data[1] = 0x20;
+        /**
+         * A marker, not a real page.
+         */
+        private Page() {
+            address = -1;
+            header = null;
+            data = null;
         }
 
-        public void parse(int address, int length, String line) throws Exception {
-            int sum = length + (address & 0xFF) + (address >>> 8);
-            address %= PAGE_SIZE;
-            for (int i = 0; i < length; i++) {
-                int bt = Integer.parseInt(line.substring(9 + 2 * i, 9 + 2 * i + 2), 16);
-                data[address + i + 2] = bt;
-                sum += bt;
-            }
-            if (Integer.parseInt(line.substring(9 + 2 * length, 9 + 2 * length + 2), 16) != (((~sum) + 1) & 0xFF)) {
-                throw new Exception("Checksum error in hex file!");
+        /**
+         * Bytes of the page that aren't used are 0xFF, like erased flash.
+         */
+        public Page(MemoryImage image, int pageNr) {
+            address = pageNr * PAGE_SIZE;
+            header = BslTransport.frame(TYPE_HEADER, MODE_DL_FLASH, address >>> 8, address & 0xFF, PAGE_SIZE + 3, 0x00, 0x00);
+            int[] block = new int[PAGE_SIZE + 2];
+            block[0] = TYPE_EOT;
+            block[1] = 0x20;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                block[i + 2] = image.get(address + i);
             }
+            data = BslTransport.frame(block);
         }
     }
 
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package upload;
+
+import compiler.MemoryImage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static upload.UploaderXC888.*;
+
+/**
+ * The XC888 bootstrap loader in process, so uploads can be tested and timed without a board.
+ * Understands what {@link UploaderXC888} sends: the init byte, header blocks (download to flash, erase, read flash,
+ * execute from flash) and the data or end of transmission blocks after a download header, all checked against their XOR
+ * checksum and answered with the same RESPONSE_ codes. Programming a byte that isn't erased is a verify error, like
+ * on the chip.
+ * Time is real: every byte takes as long as it would on the line at the baud rate, every write call costs the given
+ * overhead (a USB serial adapter sends a packet per write) and erasing and programming take the given time. A read
+ * blocks until the answer would have arrived, or returns -1 after the same receive timeout NRSerialPort uses.
+ *
+ * @author Dries007
+ */
+public class XC888Simulator implements Connection {
+
+    public static final int READ_TIMEOUT = 100; // ms
+    public static final int HEADER_LENGTH = 8;
+
+    private static final int WAIT_INIT = 0;
+    private static final int WAIT_HEADER = 1;
+    private static final int WAIT_DATA = 2;
+
+    private final long byteNanos;
+    private final long writeNanos;
+    private final long eraseNanos;
+    private final long programNanos;
+
+    private final byte[] flash = new byte[MemoryImage.SIZE];
+    private final byte[] block = new byte[256];
+    private final ArrayDeque<long[]> responses = new ArrayDeque<>();
+    private int state = WAIT_INIT;
+    private int received;
+    private int dataLength;
+    private int dataAddress;
+    private long lineFreeAt;
+    private boolean executed;
+
+    private long bytesReceived;
+    private long writes;
+    private long roundTrips;
+
+    /**
+     * @param baudRate   10 bits per byte: start, 8 data, stop
+     * @param writeNanos the cost of one write call
+     * @param eraseNanos erasing, a mass erase or some banks
+     * @param programNanos programming one block
+     */
+    public XC888Simulator(int baudRate, long writeNanos, long eraseNanos, long programNanos) {
+        this.byteNanos = TimeUnit.SECONDS.toNanos(10) / baudRate;
+        this.writeNanos = writeNanos;
+        this.eraseNanos = eraseNanos;
+        this.programNanos = programNanos;
+        Arrays.fill(flash, (byte) 0xFF);
+    }
+
+    @Override
+    public String getName() {
+        return "simulator";
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                long[] response;
+                synchronized (responses) {
+                    response = responses.poll();
+                }
+                if (response == null) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT));
+                    return -1;
+                }
+                sleepUntil(response[1]);
+                return (int) response[0];
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                long now = System.nanoTime();
+                sleepUntil(now + writeNanos);
+                writes++;
+                long arrived = Math.max(now + writeNanos, lineFreeAt);
+                for (int i = off; i < off + len; i++) {
+                    arrived += byteNanos;
+                    receive(b[i] & 0xFF, arrived);
+                }
+                lineFreeAt = arrived;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Like the reset button: back in the bootstrap loader, waiting for the init byte. Flash is kept.
+     */
+    @Override
+    public boolean reset() {
+        state = WAIT_INIT;
+        received = 0;
+        executed = false;
+        synchronized (responses) {
+            responses.clear();
+        }
+        return true;
+    }
+
+    /**
+     * @return the byte in flash, 0xFF if erased
+     */
+    public int getFlash(int address) {
+        return flash[address] & 0xFF;
+    }
+
+    /**
+     * @return true if every used byte of the image is in flash and nothing else is
+     */
+    public boolean contains(MemoryImage image) {
+        for (int address = 0; address < MemoryImage.SIZE; address++) {
+            if (getFlash(address) != image.get(address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isExecuted() {
+        return executed;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the number of answers sent, one per block
+     */
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    public long getByteNanos() {
+        return byteNanos;
+    }
+
+    private void receive(int b, long arrived) {
+        bytesReceived++;
+        if (state == WAIT_INIT) {
+            respond(b == INIT ? RESPONSE_OK : RESPONSE_BLOCK_ERROR, arrived);
+            if (b == INIT) {
+                state = WAIT_HEADER;
+            }
+            return;
+        }
+        block[received++] = (byte) b;
+        int length = state == WAIT_HEADER ? HEADER_LENGTH : dataLength;
+        if (received < length) {
+            return;
+        }
+        received = 0;
+        int cs = 0;
+        for (int i = 0; i < length - 1; i++) {
+            cs ^= block[i];
+        }
+        if ((byte) cs != block[length - 1]) {
+            respond(RESPONSE_CS_ERROR, arrived);
+        } else if (state == WAIT_HEADER) {
+            header(arrived);
+        } else {
+            data(length, arrived);
+        }
+    }
+
+    private void header(long arrived) {
+        if (block[0] != TYPE_HEADER) {
+            respond(RESPONSE_BLOCK_ERROR, arrived);
+            return;
+        }
+        switch (block[1] & 0xFF) {
+            case MODE_DL_FLASH:
+                dataAddress = (block[2] & 0xFF) << 8 | (block[3] & 0xFF);
+                dataLength = block[4] & 0xFF;
+                if (dataLength < 3) {
+                    respond(RESPONSE_BLOCK_ERROR, arrived);
+                    return;
+                }
+                state = WAIT_DATA;
+                respond(RESPONSE_OK, arrived);
+                return;
+            case MODE_ERASE_FLASH:
+                if ((block[6] & 0xFF) == OPTION_ERASE_ALL) {
+                    Arrays.fill(flash, (byte) 0xFF);
+                } else {
+                    for (int bank = 0; bank < BANKS; bank++) {
+                        if (block[2 + bank] != 0) {
+                            Arrays.fill(flash, bank * BANK_SIZE, (bank + 1) * BANK_SIZE, (byte) 0xFF);
+                        }
+                    }
+                }
+                respond(RESPONSE_OK, arrived + eraseNanos);
+                return;
+            case MODE_READ_FLASH:
+                int address = (block[2] & 0xFF) << 8 | (block[3] & 0xFF);
+                int length = block[4] & 0xFF;
+                if (address + length > MemoryImage.SIZE) {
+                    respond(RESPONSE_BLOCK_ERROR, arrived);
+                    return;
+                }
+                respond(RESPONSE_OK, arrived);
+                long ready = arrived;
+                int cs = 0;
+                for (int i = 0; i < length; i++) {
+                    ready += byteNanos;
+                    answer(flash[address + i] & 0xFF, ready);
+                    cs ^= flash[address + i];
+                }
+                answer(cs & 0xFF, ready + byteNanos);
+                return;
+            case MODE_EX_FLASH:
+                executed = true;
+                respond(RESPONSE_OK, arrived);
+                return;
+            default:
+                respond(RESPONSE_BLOCK_ERROR, arrived); // Not simulated
+        }
+    }
+
+    /**
+     * type, a byte the uploader always sends as 0x20, the bytes to program and the checksum
+     */
+    private void data(int length, long arrived) {
+        int type = block[0];
+        if (type != TYPE_DATA && type != TYPE_EOT) {
+            respond(RESPONSE_BLOCK_ERROR, arrived);
+            return;
+        }
+        int count = length - 3;
+        if (dataAddress + count > MemoryImage.SIZE) {
+            respond(RESPONSE_BLOCK_ERROR, arrived);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (flash[dataAddress + i] != (byte) 0xFF && block[2 + i] != (byte) 0xFF) {
+                respond(RESPONSE_VERIFY_ERROR, arrived + programNanos);
+                return;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (block[2 + i] != (byte) 0xFF) { // Programming a 1 leaves the cell as it is
+                flash[dataAddress + i] = block[2 + i];
+            }
+        }
+        dataAddress += count;
+        if (type == TYPE_EOT) {
+            state = WAIT_HEADER;
+        }
+        respond(RESPONSE_OK, arrived + programNanos);
+    }
+
+    private void respond(int response, long ready) {
+        roundTrips++;
+        answer(response, ready);
+    }
+
+    /**
+     * A byte sent back after the answer to a block, like the bytes read from flash.
+     */
+    private void answer(int b, long ready) {
+        synchronized (responses) {
+            responses.add(new long[]{b, ready + byteNanos});
+        }
+    }
+
+    private static void sleepUntil(long deadline) {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package util;
+
+import compiler.SymbolTable;
+import compiler.components.Symbol;
+import util.exceptions.SymbolUndefinedException;
+import util.exceptions.SymbolUnknownException;
+
+import java.util.Map;
+
+/**
+ * An expression parsed once into postfix code. Symbols are bound to slots, so evaluating only reads their values.
+ *
+ * @author Dries007
+ */
+public class CompiledExpression
+{
+    public static final int PUSH_CONSTANT = 0;
+    public static final int PUSH_SYMBOL   = 1;
+    public static final int LOGICAL_OR    = 2;
+    public static final int LOGICAL_AND   = 3;
+    public static final int BITWISE_OR    = 4;
+    public static final int BITWISE_XOR   = 5;
+    public static final int BITWISE_AND   = 6;
+    public static final int EQUAL         = 7;
+    public static final int NOT_EQUAL     = 8;
+    public static final int LESS_THAN     = 9;
+    public static final int LESS_EQUAL    = 10;
+    public static final int GREATER_THAN  = 11;
+    public static final int GREATER_EQUAL = 12;
+    public static final int SHIFT_LEFT    = 13;
+    public static final int SHIFT_RIGHT   = 14;
+    public static final int MINUS         = 15;
+    public static final int PLUS          = 16;
+    public static final int MULTIPLY      = 17;
+    public static final int DIVIDE        = 18;
+    public static final int MODULO        = 19;
+    public static final int LOGICAL_NOT   = 20;
+    public static final int NEGATE        = 21;
+    public static final int COMPLEMENT    = 22;
+    public static final int DOT           = 23;
+    public static final int LOW           = 24;
+    public static final int HIGH          = 25;
+
+    /*
+     * Status codes, in the upper half of the result of tryEvaluate
+     */
+    public static final int DEFINED   = 0;
+    public static final int UNDEFINED = 1;
+    public static final int UNKNOWN   = 2;
+
+    private final int[]    code;
+    private final int      stackSize;
+    private final String[] names;
+    private final Symbol[] slots;
+
+    /**
+     * @param code      opcodes, PUSH_CONSTANT and PUSH_SYMBOL are followed by the value or the slot index
+     * @param stackSize the maximum stack depth the code needs
+     * @param names     the (lowercase) symbol name of every slot
+     */
+    public CompiledExpression(int[] code, int stackSize, String[] names, Map<String, Symbol> symbols)
+    {
+        this.code = code;
+        this.stackSize = stackSize;
+        this.names = names;
+        this.slots = new Symbol[names.length];
+        for (int i = 0; i < names.length; i++) slots[i] = symbols.get(names[i]);
+    }
+
+    /**
+     * @return the same code, bound to another set of symbols
+     */
+    public CompiledExpression bind(Map<String, Symbol> symbols)
+    {
+        return new CompiledExpression(code, stackSize, names, symbols);
+    }
+
+    public int evaluate(Map<String, Symbol> symbols) throws SymbolUndefinedException, SymbolUnknownException
+    {
+        long result = tryEvaluate(symbols);
+        switch (status(result))
+        {
+            case UNDEFINED:
+                throw new SymbolUndefinedException(slots[value(result)].key);
+            case UNKNOWN:
+                throw new SymbolUnknownException(names[value(result)]);
+        }
+        return value(result);
+    }
+
+    /**
+     * @return status (DEFINED, UNDEFINED or UNKNOWN) and value packed in a long, see {@link #status(long)} and {@link #value(long)}.
+     * If the status isn't DEFINED, the value is the slot of the offending symbol.
+     */
+    public long tryEvaluate(Map<String, Symbol> symbols)
+    {
+        long result = run(symbols);
+        if (symbols instanceof SymbolTable) ((SymbolTable) symbols).stats.evaluated(status(result));
+        return result;
+    }
+
+    private long run(Map<String, Symbol> symbols)
+    {
+        if (code.length == 2) // Single number or symbol, by far the most common
+        {
+            return code[0] == PUSH_CONSTANT ? result(DEFINED, code[1]) : read(code[1], symbols);
+        }
+        final int[] stack = new int[stackSize];
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++)
+        {
+            switch (code[pc])
+            {
+                case PUSH_CONSTANT:
+                    stack[++top] = code[++pc];
+                    break;
+                case PUSH_SYMBOL:
+                    long symbol = read(code[++pc], symbols);
+                    if (status(symbol) != DEFINED) return symbol;
+                    stack[++top] = value(symbol);
+                    break;
+                case LOGICAL_OR:
+                    top--;
+                    stack[top] = (stack[top] == 0 && stack[top + 1] == 0) ? 0 : 1;
+                    break;
+                case LOGICAL_AND:
+                    top--;
+                    stack[top] = (stack[top] != 0 && stack[top + 1] != 0) ? 1 : 0;
+                    break;
+                case BITWISE_OR:
+                    top--;
+                    stack[top] = stack[top] | stack[top + 1];
+                    break;
+                case BITWISE_XOR:
+                    top--;
+                    stack[top] = stack[top] ^ stack[top + 1];
+                    break;
+                case BITWISE_AND:
+                    top--;
+                    stack[top] = stack[top] & stack[top + 1];
+                    break;
+                case EQUAL:
+                    top--;
+                    stack[top] = stack[top] == stack[top + 1] ? 1 : 0;
+                    break;
+                case NOT_EQUAL:
+                    top--;
+                    stack[top] = stack[top] == stack[top + 1] ? 0 : 1;
+                    break;
+                case LESS_THAN:
+                    top--;
+                    stack[top] = stack[top] < stack[top + 1] ? 1 : 0;
+                    break;
+                case LESS_EQUAL:
+                    top--;
+                    stack[top] = stack[top] <= stack[top + 1] ? 1 : 0;
+                    break;
+                case GREATER_THAN:
+                    top--;
+                    stack[top] = stack[top] > stack[top + 1] ? 1 : 0;
+                    break;
+                case GREATER_EQUAL:
+                    top--;
+                    stack[top] = stack[top] >= stack[top + 1] ? 1 : 0;
+                    break;
+                case SHIFT_LEFT:
+                    top--;
+                    stack[top] = stack[top] << stack[top + 1];
+                    break;
+                case SHIFT_RIGHT:
+                    top--;
+                    stack[top] = stack[top] >> stack[top + 1];
+                    break;
+                case MINUS:
+                    top--;
+                    stack[top] = stack[top] - stack[top + 1];
+                    break;
+                case PLUS:
+                    top--;
+                    stack[top] = stack[top] + stack[top + 1];
+                    break;
+                case MULTIPLY:
+                    top--;
+                    stack[top] = stack[top] * stack[top + 1];
+                    break;
+                case DIVIDE:
+                    top--;
+                    stack[top] = stack[top] / stack[top + 1];
+                    break;
+                case MODULO:
+                    top--;
+                    stack[top] = stack[top] % stack[top + 1];
+                    break;
+                case DOT:
+                    top--;
+                    stack[top] = Helper.getBitAddress(stack[top], stack[top + 1]);
+                    break;
+                case LOGICAL_NOT:
+                    stack[top] = stack[top] == 0 ? 1 : 0;
+                    break;
+                case NEGATE:
+                    stack[top] = -stack[top];
+                    break;
+                case COMPLEMENT:
+                    stack[top] = ~stack[top];
+                    break;
+                case LOW:
+                    stack[top] = stack[top] & 0xFF;
+                    break;
+                case HIGH:
+                    stack[top] = stack[top] >>> 8;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + code[pc]);
+            }
+        }
+        return result(DEFINED, stack[0]);
+    }
+
+    /**
+     * @return the name of the symbol in this slot, for error messages
+     */
+    public String getName(int slot)
+    {
+        return names[slot];
+    }
+
+    public static int status(long result)
+    {
+        return (int) (result >>> 32);
+    }
+
+    public static int value(long result)
+    {
+        return (int) result;
+    }
+
+    private static long result(int status, int value)
+    {
+        return ((long) status << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private long read(int slot, Map<String, Symbol> symbols)
+    {
+        Symbol symbol = slots[slot];
+        if (symbol == null)
+        {
+            // Late binding, in case the symbol got added after this expression was compiled.
+            symbol = slots[slot] = symbols.get(names[slot]);
+            if (symbol == null) return result(UNKNOWN, slot);
+        }
+        if (!symbol.isDefined()) return result(UNDEFINED, slot);
+        return result(DEFINED, symbol.intValue);
+    }
+}
@@ -76,6 +76,9 @@ public class Constants
     public static final String FONT_SIZE          = "font.size";
     public static final String TABSIZE            = "tabSize";
     public static final String INCLUDEDIR         = "includedir";
+    public static final String OUTPUT_FORMAT      = "output.format";
+    // Only erase what changed since the last upload through the port. Kept in flash-<port>.bin, checked by reading back.
+    public static final String UPLOAD_DIFF        = "upload.differential";
     public static final String SYNTAX_NAME        = "text/8051";
     /*
      * Prefixes
@@ -88,32 +91,21 @@ public class Constants
      */
     public static final Pattern INCLUDE_A = Pattern.compile("^\\s*#include\\s+\"(.*)\"\\s*$", CASE_INSENSITIVE);
     public static final Pattern INCLUDE_R = Pattern.compile("^\\s*#include\\s+<(.*)>\\s*$", CASE_INSENSITIVE);
-    public static final Pattern DEFINE    = Pattern.compile("^\\s*#define\\s+(\\w+?)(?:\\((.*)\\))? (.*)$", CASE_INSENSITIVE);
+    public static final Pattern DEFINE    = Pattern.compile("^\\s*#define\\s+(\\w+?)(?:\\(([^)]*)\\))?(?:\\s+(.*))?$", CASE_INSENSITIVE);
     public static final Pattern UNDEFINE  = Pattern.compile("^\\s*#undefine\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
     public static final Pattern IFDEF     = Pattern.compile("^\\s*#ifdef\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
     public static final Pattern IFNDEF    = Pattern.compile("^\\s*#ifndef\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
-    public static final Pattern ELSE      = Pattern.compile("^\\s*#else \\s*$", CASE_INSENSITIVE);
+    public static final Pattern ELSE      = Pattern.compile("^\\s*#else\\s*$", CASE_INSENSITIVE);
     public static final Pattern ENDIF     = Pattern.compile("^\\s*#endif\\s*$", CASE_INSENSITIVE);
 
-    public static final Pattern STRING = Pattern.compile("\"(.*?)\"");
-    public static final Pattern CHAR   = Pattern.compile("'(.)'");
-
-    public static final Pattern EQU   = Pattern.compile("(\\w+)\\s+equ\\s", CASE_INSENSITIVE);
-    public static final Pattern DATA  = Pattern.compile("(\\w+)\\s+data\\s", CASE_INSENSITIVE);
-    public static final Pattern BIT   = Pattern.compile("(\\w+)\\s+bit\\s", CASE_INSENSITIVE);
-    public static final Pattern LABEL = Pattern.compile("(\\w+):");
-
-    public static final Pattern DB = Pattern.compile("db\\s+((.+?)\\b(?:,\\s*(?:.+?)\\b)*)", CASE_INSENSITIVE);
-    public static final Pattern DW = Pattern.compile("dw\\s+((.+?)\\b(?:,\\s*(?:.+?)\\b)*)", CASE_INSENSITIVE);
-    public static final Pattern DS = Pattern.compile("ds\\s+(.+?)\\b(?:\\s*<<\\s*(.+?)\\b)?", CASE_INSENSITIVE);
-
-    public static final Pattern ORG = Pattern.compile("(?:^|\\s+)org(?:$|\\s+)", CASE_INSENSITIVE);
-    public static final Pattern END = Pattern.compile("(?:^|\\s+)end(?:$|\\s+)", CASE_INSENSITIVE);
-
     // Properties used for persistent stuff like preferences
     public static final Properties PROPERTIES = new Properties();
 
-    static
+    /**
+     * Loads the settings file and saves it again on exit. Only the application does this, using the compiler as a
+     * library doesn't read or write any settings.
+     */
+    public static void loadProperties()
     {
         try
         {
@@ -42,14 +42,46 @@ public class Helper
     {
     }
 
+    /**
+     * Value returned by {@link #parseNumber(CharSequence, int, int)} if the text isn't a number.
+     */
+    public static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
     public static int parseToInt(String string)
     {
-        char last = string.charAt(string.length() - 1);
-        if (last == 'b' || last == 'B') return Integer.parseInt(string.substring(0, string.length() - 1), 2);
-        if (last == 'h' || last == 'H') return Integer.parseInt(string.substring(0, string.length() - 1), 16);
-        if (last == 'o' || last == 'O') return Integer.parseInt(string.substring(0, string.length() - 1), 8);
-        if (string.startsWith("0x")) return Integer.parseInt(string.substring(2), 16);
-        return Integer.parseInt(string);
+        long value = parseNumber(string, 0, string.length());
+        if (value == NOT_A_NUMBER) throw new NumberFormatException("For input string: \"" + string + "\"");
+        return (int) value;
+    }
+
+    /**
+     * Parse a number literal (1010b, 0FFh, 17o, 0x1F or decimal) without creating substrings.
+     *
+     * @return the value, or NOT_A_NUMBER
+     */
+    public static long parseNumber(CharSequence string, int start, int end)
+    {
+        if (start >= end) return NOT_A_NUMBER;
+        char last = string.charAt(end - 1);
+        if (last == 'b' || last == 'B') return parseNumber(string, start, end - 1, 2);
+        if (last == 'h' || last == 'H') return parseNumber(string, start, end - 1, 16);
+        if (last == 'o' || last == 'O') return parseNumber(string, start, end - 1, 8);
+        if (end - start > 2 && string.charAt(start) == '0' && string.charAt(start + 1) == 'x') return parseNumber(string, start + 2, end, 16);
+        return parseNumber(string, start, end, 10);
+    }
+
+    private static long parseNumber(CharSequence string, int start, int end, int radix)
+    {
+        if (start >= end) return NOT_A_NUMBER;
+        long value = 0;
+        for (int i = start; i < end; i++)
+        {
+            int digit = Character.digit(string.charAt(i), radix);
+            if (digit < 0) return NOT_A_NUMBER;
+            value = value * radix + digit;
+            if (value > Integer.MAX_VALUE) return NOT_A_NUMBER;
+        }
+        return value;
     }
 
     public static String toHexString(int[] data)
@@ -31,145 +31,369 @@
 
 package util;
 
-import com.fathzer.soft.javaluator.AbstractEvaluator;
-import com.fathzer.soft.javaluator.Function;
-import com.fathzer.soft.javaluator.Operator;
-import com.fathzer.soft.javaluator.Parameters;
+import compiler.CompileCache;
+import compiler.SymbolTable;
 import compiler.components.Symbol;
-import util.exceptions.SymbolUndefinedException;
-import util.exceptions.SymbolUnknownException;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-
-import static com.fathzer.soft.javaluator.BracketPair.PARENTHESES;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <a href="http://en.wikipedia.org/wiki/Order_of_operations">Following the C preference</a>
+ * Expressions are compiled once (see {@link CompiledExpression}) and cached per {@link SymbolTable} and {@link CompileCache}.
+ *
+ * Precedence, low to high: || && | ^ &, == !=, < <= > >=, << >>, + -, * / %, unary ! - ~ and (bits only) the . operator.
+ * Functions: low(x) and high(x).
  *
  * @author Dries007
  */
-public class IntegerEvaluator extends AbstractEvaluator<Integer>{
-    public static final Operator LOGICAL_OR  = new Operator("||", 2, Operator.Associativity.LEFT, 1);
-    public static final Operator LOGICAL_AND = new Operator("&&", 2, Operator.Associativity.LEFT, 2);
-    public static final Operator BITWISE_OR  = new Operator("|", 2, Operator.Associativity.LEFT, 3);
-    public static final Operator BITWISE_XOR = new Operator("^", 2, Operator.Associativity.LEFT, 4);
-    public static final Operator BITWISE_AND = new Operator("&", 2, Operator.Associativity.LEFT, 5);
-
-    public static final Operator EQUAL     = new Operator("==", 2, Operator.Associativity.LEFT, 6);
-    public static final Operator NOT_EQUAL = new Operator("!=", 2, Operator.Associativity.LEFT, 6);
-
-    public static final Operator LESS_THAN             = new Operator("<", 2, Operator.Associativity.LEFT, 7);
-    public static final Operator LESS_THAN_OR_EQUAL    = new Operator("<=", 2, Operator.Associativity.LEFT, 7);
-    public static final Operator GREATER_THAN          = new Operator(">", 2, Operator.Associativity.LEFT, 7);
-    public static final Operator GREATER_THAN_OR_EQUAL = new Operator(">=", 2, Operator.Associativity.LEFT, 7);
-
-    public static final Operator SHIFT_LEFT  = new Operator("<<", 2, Operator.Associativity.LEFT, 8);
-    public static final Operator SHIFT_RIGHT = new Operator(">>", 2, Operator.Associativity.LEFT, 8);
-
-    public static final Operator MINUS = new Operator("-", 2, Operator.Associativity.LEFT, 9);
-    public static final Operator PLUS  = new Operator("+", 2, Operator.Associativity.LEFT, 9);
-
-    public static final Operator MULTIPLY = new Operator("*", 2, Operator.Associativity.LEFT, 10);
-    public static final Operator DIVIDE   = new Operator("/", 2, Operator.Associativity.LEFT, 10);
-    public static final Operator MODULO   = new Operator("%", 2, Operator.Associativity.LEFT, 10);
-
-    public static final Operator       LOGICAL_NOT = new Operator("!", 1, Operator.Associativity.RIGHT, 11);
-    public static final Operator       NEGATE      = new Operator("-", 1, Operator.Associativity.RIGHT, 11);
-    public static final Operator       COMPLEMENT  = new Operator("~", 1, Operator.Associativity.RIGHT, 11);
-    public static final List<Operator> OPERATORS   = Arrays.asList(LOGICAL_OR, LOGICAL_AND, BITWISE_OR, BITWISE_XOR, BITWISE_AND, EQUAL, NOT_EQUAL, LESS_THAN, LESS_THAN_OR_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL, SHIFT_LEFT, SHIFT_RIGHT, MINUS, PLUS, MULTIPLY, DIVIDE, MODULO, LOGICAL_NOT, NEGATE, COMPLEMENT);
-    // Used for bit assignments
-    public static final Operator       DOT         = new Operator(".", 2, Operator.Associativity.LEFT, 12);
-    public static final Function       LOW         = new Function("low", 1);
-    public static final Function       HIGH        = new Function("high", 1);
-
-    public static final List<Function> FUNCTIONS = Arrays.asList(LOW, HIGH);
-
-    private static final Parameters PARAMETERS;
-    private static final Parameters PARAMETERS_BITS;
-
-    static
-    {
-        // Create the evaluator's parameters
-        PARAMETERS = new Parameters();
-        PARAMETERS.addFunctions(FUNCTIONS);
-        PARAMETERS.addOperators(OPERATORS);
-        PARAMETERS.addFunctionBracket(PARENTHESES);
-        PARAMETERS.addExpressionBracket(PARENTHESES);
-
-        PARAMETERS_BITS = new Parameters();
-        PARAMETERS_BITS.addFunctions(FUNCTIONS);
-        PARAMETERS_BITS.addOperators(OPERATORS);
-        PARAMETERS_BITS.add(DOT);
-        PARAMETERS_BITS.addFunctionBracket(PARENTHESES);
-        PARAMETERS_BITS.addExpressionBracket(PARENTHESES);
-    }
-
+public class IntegerEvaluator
+{
     public static final IntegerEvaluator EVALUATOR      = new IntegerEvaluator(false);
     public static final IntegerEvaluator EVALUATOR_BITS = new IntegerEvaluator(true);
 
+    private static final int PRECEDENCE_UNARY = 11;
+
+    private final boolean bits;
+
     public IntegerEvaluator(boolean bits)
     {
-        super(bits ? PARAMETERS_BITS : PARAMETERS);
+        this.bits = bits;
     }
 
-    @Override
-    protected Integer evaluate(Operator operator, Iterator<Integer> operands, Object evaluationContext)
+    /**
+     * @throws util.exceptions.SymbolUndefinedException if a symbol has no value (yet)
+     * @throws util.exceptions.SymbolUnknownException   if a symbol doesn't exist
+     */
+    public int evaluate(String expression, Map<String, Symbol> symbols)
     {
-        if (LOGICAL_OR == operator) return (operands.next() == 0 && operands.next() == 0) ? 0 : 1;
-        if (LOGICAL_AND == operator) return (operands.next() != 0 && operands.next() != 0) ? 1 : 0;
-        if (BITWISE_OR == operator) return operands.next() | operands.next();
-        if (BITWISE_XOR == operator) return operands.next() ^ operands.next();
-        if (BITWISE_AND == operator) return operands.next() & operands.next();
-        if (EQUAL == operator) return operands.next().equals(operands.next()) ? 1 : 0;
-        if (NOT_EQUAL == operator) return operands.next().equals(operands.next()) ? 0 : 1;
-        if (LESS_THAN == operator) return (operands.next() < operands.next()) ? 1 : 0;
-        if (LESS_THAN_OR_EQUAL == operator) return (operands.next() <= operands.next()) ? 1 : 0;
-        if (GREATER_THAN == operator) return (operands.next() > operands.next()) ? 1 : 0;
-        if (GREATER_THAN_OR_EQUAL == operator) return (operands.next() >= operands.next()) ? 1 : 0;
-        if (SHIFT_LEFT == operator) return operands.next() << operands.next();
-        if (SHIFT_RIGHT == operator) return operands.next() >> operands.next();
-        if (MINUS == operator) return operands.next() - operands.next();
-        if (PLUS == operator) return operands.next() + operands.next();
-        if (MULTIPLY == operator) return operands.next() * operands.next();
-        if (DIVIDE == operator) return operands.next() / operands.next();
-        if (MULTIPLY == operator) return operands.next() * operands.next();
-        if (MODULO == operator) return operands.next() % operands.next();
-        if (LOGICAL_NOT == operator) return operands.next() == 0 ? 1 : 0;
-        if (NEGATE == operator) return -operands.next();
-        if (COMPLEMENT == operator) return ~operands.next();
-        if (DOT == operator) return Helper.getBitAddress(operands.next(), operands.next());
-        return super.evaluate(operator, operands, evaluationContext);
+        return compile(expression, symbols).evaluate(symbols);
     }
 
-    @Override
-    protected Integer evaluate(Function function, Iterator<Integer> arguments, Object evaluationContext)
+    /**
+     * Parse an expression once. If the symbols are a SymbolTable, the result is cached in it.
+     */
+    public CompiledExpression compile(String expression, Map<String, Symbol> symbols)
     {
-        if (LOW == function) return arguments.next() & 0xFF;
-        if (HIGH == function) return arguments.next() >>> 8;
-        return super.evaluate(function, arguments, evaluationContext);
+        HashMap<String, CompiledExpression> cache = null;
+        CompileCache compileCache = null;
+        if (symbols instanceof SymbolTable)
+        {
+            cache = bits ? ((SymbolTable) symbols).bitExpressions : ((SymbolTable) symbols).expressions;
+            CompiledExpression compiled = cache.get(expression);
+            if (compiled != null) return compiled;
+            compileCache = ((SymbolTable) symbols).cache;
+            if (compileCache != null && (compiled = compileCache.getExpression(bits, expression)) != null)
+            {
+                compiled = compiled.bind(symbols);
+                cache.put(expression, compiled);
+                return compiled;
+            }
+        }
+        Compiler compiler = new Compiler(expression, bits);
+        compiler.expression(1);
+        if (compiler.peek() != Compiler.END) throw compiler.error();
+        CompiledExpression compiled = new CompiledExpression(Arrays.copyOf(compiler.code, compiler.length), compiler.maxDepth, compiler.names.keySet().toArray(new String[compiler.names.size()]), symbols);
+        if (cache != null) cache.put(expression, compiled);
+        if (compileCache != null) compileCache.putExpression(bits, expression, compiled);
+        return compiled;
     }
 
-    @Override
-    protected Integer toValue(String literal, Object evaluationContext)
+    /**
+     * Recursive descent (precedence climbing) parser that writes postfix code while it reads.
+     */
+    private static class Compiler
     {
-        try
+        static final int END      = -1;
+        static final int LITERAL  = -2;
+        static final int OPEN     = -3;
+        static final int CLOSE    = -4;
+        static final int OPERATOR = -5;
+
+        final String  src;
+        final boolean bits;
+        final LinkedHashMap<String, Integer> names = new LinkedHashMap<>();
+        int[] code = new int[8];
+        int   length;
+        int   depth, maxDepth;
+
+        int pos;
+        int tokenStart, tokenEnd;
+
+        Compiler(String src, boolean bits)
         {
-            return Helper.parseToInt(literal);
+            this.src = src;
+            this.bits = bits;
         }
-        catch (NumberFormatException e)
+
+        void expression(int minPrecedence)
         {
-            //noinspection unchecked
-            HashMap<String, Symbol> map = (HashMap<String, Symbol>) evaluationContext;
-            if (map.containsKey(literal.toLowerCase()))
+            unary();
+            int opcode;
+            while ((opcode = binaryOperator()) != -1 && precedence(opcode) >= minPrecedence)
             {
-                Symbol symbol = map.get(literal.toLowerCase());
-                if (symbol.isDefined()) return symbol.intValue;
-                else throw new SymbolUndefinedException(symbol.key);
+                pos = tokenEnd;
+                expression(precedence(opcode) + 1); // All binary operators are left associative
+                emit(opcode);
+                depth--;
             }
-            else throw new SymbolUnknownException(literal);
+        }
+
+        void unary()
+        {
+            if (peek() == OPERATOR)
+            {
+                int opcode;
+                switch (src.charAt(tokenStart))
+                {
+                    case '!':
+                        opcode = CompiledExpression.LOGICAL_NOT;
+                        break;
+                    case '-':
+                        opcode = CompiledExpression.NEGATE;
+                        break;
+                    case '~':
+                        opcode = CompiledExpression.COMPLEMENT;
+                        break;
+                    default:
+                        throw error();
+                }
+                if (tokenEnd - tokenStart != 1) throw error();
+                pos = tokenEnd;
+                unary();
+                emit(opcode);
+                return;
+            }
+            primary();
+            while (bits && peek() == OPERATOR && src.charAt(tokenStart) == '.')
+            {
+                pos = tokenEnd;
+                primary();
+                emit(CompiledExpression.DOT);
+                depth--;
+            }
+        }
+
+        void primary()
+        {
+            switch (peek())
+            {
+                case OPEN:
+                    pos = tokenEnd;
+                    expression(1);
+                    expect(CLOSE);
+                    return;
+                case LITERAL:
+                    int start = tokenStart, end = tokenEnd;
+                    pos = tokenEnd;
+                    if (peek() == OPEN)
+                    {
+                        int opcode;
+                        if (isWord(start, end, "low")) opcode = CompiledExpression.LOW;
+                        else if (isWord(start, end, "high")) opcode = CompiledExpression.HIGH;
+                        else throw error();
+                        pos = tokenEnd;
+                        expression(1);
+                        expect(CLOSE);
+                        emit(opcode);
+                        return;
+                    }
+                    long value = Helper.parseNumber(src, start, end);
+                    if (value != Helper.NOT_A_NUMBER)
+                    {
+                        emit(CompiledExpression.PUSH_CONSTANT, (int) value);
+                    }
+                    else
+                    {
+                        String name = src.substring(start, end).toLowerCase();
+                        Integer slot = names.get(name);
+                        if (slot == null) names.put(name, slot = names.size());
+                        emit(CompiledExpression.PUSH_SYMBOL, slot);
+                    }
+                    if (++depth > maxDepth) maxDepth = depth;
+                    return;
+                default:
+                    throw error();
+            }
+        }
+
+        /**
+         * @return the opcode of the binary operator at the current position, or -1. Doesn't consume it.
+         */
+        int binaryOperator()
+        {
+            if (peek() != OPERATOR) return -1;
+            char c = src.charAt(tokenStart);
+            if (tokenEnd - tokenStart == 2)
+            {
+                switch (c)
+                {
+                    case '|':
+                        return CompiledExpression.LOGICAL_OR;
+                    case '&':
+                        return CompiledExpression.LOGICAL_AND;
+                    case '=':
+                        return CompiledExpression.EQUAL;
+                    case '!':
+                        return CompiledExpression.NOT_EQUAL;
+                    case '<':
+                        return src.charAt(tokenStart + 1) == '<' ? CompiledExpression.SHIFT_LEFT : CompiledExpression.LESS_EQUAL;
+                    case '>':
+                        return src.charAt(tokenStart + 1) == '>' ? CompiledExpression.SHIFT_RIGHT : CompiledExpression.GREATER_EQUAL;
+                }
+                throw error();
+            }
+            switch (c)
+            {
+                case '|':
+                    return CompiledExpression.BITWISE_OR;
+                case '^':
+                    return CompiledExpression.BITWISE_XOR;
+                case '&':
+                    return CompiledExpression.BITWISE_AND;
+                case '<':
+                    return CompiledExpression.LESS_THAN;
+                case '>':
+                    return CompiledExpression.GREATER_THAN;
+                case '-':
+                    return CompiledExpression.MINUS;
+                case '+':
+                    return CompiledExpression.PLUS;
+                case '*':
+                    return CompiledExpression.MULTIPLY;
+                case '/':
+                    return CompiledExpression.DIVIDE;
+                case '%':
+                    return CompiledExpression.MODULO;
+                case '.':
+                    return -1; // Handled in unary(), binds tighter
+            }
+            throw error();
+        }
+
+        static int precedence(int opcode)
+        {
+            switch (opcode)
+            {
+                case CompiledExpression.LOGICAL_OR:
+                    return 1;
+                case CompiledExpression.LOGICAL_AND:
+                    return 2;
+                case CompiledExpression.BITWISE_OR:
+                    return 3;
+                case CompiledExpression.BITWISE_XOR:
+                    return 4;
+                case CompiledExpression.BITWISE_AND:
+                    return 5;
+                case CompiledExpression.EQUAL:
+                case CompiledExpression.NOT_EQUAL:
+                    return 6;
+                case CompiledExpression.LESS_THAN:
+                case CompiledExpression.LESS_EQUAL:
+                case CompiledExpression.GREATER_THAN:
+                case CompiledExpression.GREATER_EQUAL:
+                    return 7;
+                case CompiledExpression.SHIFT_LEFT:
+                case CompiledExpression.SHIFT_RIGHT:
+                    return 8;
+                case CompiledExpression.MINUS:
+                case CompiledExpression.PLUS:
+                    return 9;
+                case CompiledExpression.MULTIPLY:
+                case CompiledExpression.DIVIDE:
+                case CompiledExpression.MODULO:
+                    return 10;
+            }
+            return PRECEDENCE_UNARY;
+        }
+
+        /**
+         * Find the next token, starting at pos. Sets tokenStart and tokenEnd but doesn't move pos.
+         */
+        int peek()
+        {
+            int i = pos;
+            while (i < src.length() && Character.isWhitespace(src.charAt(i))) i++;
+            tokenStart = i;
+            if (i == src.length())
+            {
+                tokenEnd = i;
+                return END;
+            }
+            char c = src.charAt(i);
+            tokenEnd = i + 1;
+            if (c == '(') return OPEN;
+            if (c == ')') return CLOSE;
+            if (isOperator(c))
+            {
+                if (i + 1 < src.length())
+                {
+                    char n = src.charAt(i + 1);
+                    if ((n == c && (c == '|' || c == '&' || c == '<' || c == '>' || c == '=')) || (n == '=' && (c == '!' || c == '<' || c == '>'))) tokenEnd++;
+                }
+                return OPERATOR;
+            }
+            while (tokenEnd < src.length() && !isDelimiter(src.charAt(tokenEnd))) tokenEnd++;
+            return LITERAL;
+        }
+
+        void expect(int token)
+        {
+            if (peek() != token) throw error();
+            pos = tokenEnd;
+        }
+
+        boolean isOperator(char c)
+        {
+            switch (c)
+            {
+                case '|':
+                case '&':
+                case '^':
+                case '=':
+                case '!':
+                case '<':
+                case '>':
+                case '-':
+                case '+':
+                case '*':
+                case '/':
+                case '%':
+                case '~':
+                    return true;
+                case '.':
+                    return bits;
+            }
+            return false;
+        }
+
+        boolean isDelimiter(char c)
+        {
+            return c == '(' || c == ')' || Character.isWhitespace(c) || isOperator(c);
+        }
+
+        boolean isWord(int start, int end, String word)
+        {
+            return end - start == word.length() && src.regionMatches(true, start, word, 0, word.length());
+        }
+
+        void emit(int opcode)
+        {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = opcode;
+        }
+
+        void emit(int opcode, int operand)
+        {
+            emit(opcode);
+            emit(operand);
+        }
+
+        IllegalArgumentException error()
+        {
+            return new IllegalArgumentException("Invalid expression: " + src + " (at " + (tokenStart + 1) + ")");
         }
     }
 }